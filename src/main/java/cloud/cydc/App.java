@@ -1,6 +1,7 @@
 package cloud.cydc;
 
 import cloud.cydc.blynk.BlynkServer;
+import cloud.cydc.cache.PinStateStore;
 import cloud.cydc.cache.RedisClientManager;
 import cloud.cydc.config.Config;
 import cloud.cydc.db.DashboardDao;
@@ -8,21 +9,30 @@ import cloud.cydc.db.DeviceDao;
 import cloud.cydc.db.DeviceInfoDao;
 import cloud.cydc.db.PostgresDataSource;
 import cloud.cydc.db.RawDataDao;
+import cloud.cydc.db.RawDataStore;
 import cloud.cydc.db.UsersDao;
 import cloud.cydc.netty.NettyServer;
+import cloud.cydc.netty.NettyTransport;
 import cloud.cydc.service.DashboardService;
 import cloud.cydc.service.DeviceInfoService;
 import cloud.cydc.service.DeviceService;
 import cloud.cydc.service.RawDataService;
 import cloud.cydc.service.UsersService;
 import cloud.cydc.service.VirtualPinService;
+import cloud.cydc.service.WriteAheadLog;
+import cloud.cydc.service.WriteBehindQueue;
+import cloud.cydc.tsdb.SegmentStore;
+import cloud.cydc.util.OrderedExecutor;
+import cloud.cydc.util.RateLimiter;
 import cloud.cydc.util.TokenValidator;
+import cloud.cydc.http.HistoryStreamer;
 import cloud.cydc.http.HttpServer;
 import cloud.cydc.websocket.WebSocketServer;
 import cloud.cydc.websocket.WebSocketFrameHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
 import java.util.concurrent.CountDownLatch;
 
 public class App 
@@ -49,8 +59,11 @@ public class App
         // Initialize database schema with Blynk-compatible tables and raw data support
         initializeDatabase(cfg);
 
+        // One set of event loops (epoll when available) shared by all servers
+        NettyTransport transport = new NettyTransport(cfg);
+
         int port = Integer.parseInt(cfg.get("server.port", "8080"));
-        NettyServer server = new NettyServer(port, deviceService);
+        NettyServer server = new NettyServer(port, deviceService, transport);
         server.start();
 
         // start HTTP API
@@ -65,30 +78,115 @@ public class App
         // Initialize raw data service
         boolean enableRawData = Boolean.parseBoolean(cfg.get("enable.raw.data.store", "false"));
         RawDataService rawDataService = null;
+        WriteAheadLog rawDataWal = null;
         if (enableRawData) {
-            RawDataDao rawDataDao = new RawDataDao(PostgresDataSource.getDataSource());
-            rawDataService = new RawDataService(rawDataDao, true);
+            // segments = numeric samples go to compressed local segment files instead of raw_data rows
+            RawDataStore sampleStore = null;
+            if ("segments".equalsIgnoreCase(cfg.get("rawdata.backend", "postgres"))) {
+                sampleStore = new SegmentStore(
+                    Paths.get(cfg.get("rawdata.segments.dir", "data/tsdb")),
+                    Integer.parseInt(cfg.get("rawdata.segments.size.mb", "64")) * 1024 * 1024);
+            }
+            RawDataDao rawDataDao = new RawDataDao(PostgresDataSource.getDataSource(), sampleStore);
+            // Rows are written in one transaction per batch: JDBC batch or COPY, sized by observed latency
+            rawDataService = new RawDataService(rawDataDao, true,
+                "copy".equalsIgnoreCase(cfg.get("rawdata.insert.mode", "batch")),
+                Integer.parseInt(cfg.get("rawdata.batch.min", "50")),
+                Integer.parseInt(cfg.get("rawdata.batch.max", "5000")),
+                Long.parseLong(cfg.get("rawdata.batch.target.ms", "50")),
+                Integer.parseInt(cfg.get("rawdata.retention.days", "90")),
+                Integer.parseInt(cfg.get("rawdata.partition.days.ahead", "7")),
+                Integer.parseInt(cfg.get("rawdata.rollup.minute.retention.days", "7")),
+                Integer.parseInt(cfg.get("rawdata.rollup.hour.retention.days", "365")));
+            if (rawDataService.isPartitioned()) {
+                // Partitions for today and the next days exist before the first write
+                rawDataService.maintainPartitions();
+            }
             log.info("Raw data storage enabled");
+            
+            // Rows queued for the DB are logged first; rows left by a crash are inserted before we accept new ones
+            if (Boolean.parseBoolean(cfg.get("rawdata.wal.enabled", "false"))) {
+                rawDataWal = new WriteAheadLog(
+                    Paths.get(cfg.get("rawdata.wal.dir", "data/wal")),
+                    Long.parseLong(cfg.get("rawdata.wal.segment.mb", "64")) * 1024 * 1024,
+                    Boolean.parseBoolean(cfg.get("rawdata.wal.fsync", "false")));
+                // Same path as the write-behind queue, so replayed rows reach the rollups too
+                rawDataWal.replay(rawDataService::storeRawDataBatch, Integer.parseInt(cfg.get("rawdata.batch.max", "5000")));
+            }
+            
+            // The minute/hour/day buckets that were open when we stopped (or crashed) are recounted from the rows,
+            // replayed ones included
+            rawDataService.rebuildOpenRollups();
         }
         
         // Read sync configuration
         int syncIntervalSeconds = Integer.parseInt(cfg.get("pin.sync.interval.seconds", "10"));
         int syncThreshold = Integer.parseInt(cfg.get("pin.sync.threshold", "100"));
         
-        var pinService = new VirtualPinService(rawDataService, syncIntervalSeconds, syncThreshold);
-        var httpServer = new HttpServer(httpPort, usersService, dashboardService, deviceInfoService, pinService);
+        // Pin state is served from memory and written to Redis in batches every flush interval
+        long pinFlushIntervalMs = Long.parseLong(cfg.get("pin.store.flush.interval.ms", "100"));
+        
+        // "hash" keeps all pins of a device in one Redis hash (pins:<dev>); "keys" = one key per pin
+        PinStateStore.Layout pinLayout = "hash".equalsIgnoreCase(cfg.get("pin.redis.layout", "keys"))
+            ? PinStateStore.Layout.HASH : PinStateStore.Layout.KEYS;
+        
+        // Rows waiting for the DB: bounded ring, full = block the writer or spill to disk
+        WriteBehindQueue writeQueue = new WriteBehindQueue(
+            Integer.parseInt(cfg.get("rawdata.queue.capacity", "65536")),
+            "spill".equalsIgnoreCase(cfg.get("rawdata.queue.overflow", "block"))
+                ? WriteBehindQueue.Overflow.SPILL : WriteBehindQueue.Overflow.BLOCK,
+            Long.parseLong(cfg.get("rawdata.queue.block.timeout.ms", "5000")),
+            Paths.get(cfg.get("rawdata.queue.spill.dir", "data/spill")),
+            rawDataWal);
+        
+        var pinService = new VirtualPinService(rawDataService, syncIntervalSeconds, syncThreshold, pinFlushIntervalMs,
+            pinLayout, writeQueue);
+        if (pinLayout == PinStateStore.Layout.HASH && Boolean.parseBoolean(cfg.get("pin.redis.migrate.on.start", "false"))) {
+            // Devices not migrated yet are still moved lazily on first read
+            Thread migration = new Thread(() -> {
+                try {
+                    pinService.migrateLegacyPinKeys();
+                } catch (Exception e) {
+                    log.error("Pin key migration failed", e);
+                }
+            }, "pin-migration");
+            migration.setDaemon(true);
+            migration.start();
+        }
+        
+        // Token validation cache shared by the HTTP API and the Blynk server
+        TokenValidator tokenValidator = new TokenValidator(deviceInfoService,
+            Integer.parseInt(cfg.get("token.cache.max.entries", "100000")),
+            Integer.parseInt(cfg.get("token.cache.ttl.seconds", "300")),
+            Integer.parseInt(cfg.get("token.cache.negative.ttl.seconds", "30")));
+        // Pin write limits shared by the HTTP API and the Blynk server (rate 0 = unlimited)
+        RateLimiter rateLimiter = new RateLimiter(
+            Double.parseDouble(cfg.get("ratelimit.device.per.second", "20")),
+            Integer.parseInt(cfg.get("ratelimit.device.burst", "50")),
+            Double.parseDouble(cfg.get("ratelimit.user.per.second", "200")),
+            Integer.parseInt(cfg.get("ratelimit.user.burst", "500")));
+        // History queries block on JDBC, so they are streamed from their own small pool
+        var historyStreamer = new HistoryStreamer(rawDataService,
+            Integer.parseInt(cfg.get("http.history.threads", "4")));
+        var httpServer = new HttpServer(httpPort, usersService, dashboardService, deviceInfoService, pinService,
+            tokenValidator, rateLimiter, transport, historyStreamer);
         httpServer.start();
 
         // start Blynk protocol server for ESP32 devices (port 8442)
         int blynkPort = Integer.parseInt(cfg.get("server.blynk.port", "8442"));
-        TokenValidator tokenValidator = new TokenValidator(deviceInfoService);
-        BlynkServer blynkServer = new BlynkServer(blynkPort, deviceInfoService, pinService, tokenValidator);
+        // Redis/JDBC work for device messages runs here instead of on the Netty event loops
+        int blynkWorkerThreads = Integer.parseInt(cfg.get("blynk.executor.threads",
+            String.valueOf(Math.max(4, Runtime.getRuntime().availableProcessors() * 2))));
+        int blynkQueueSize = Integer.parseInt(cfg.get("blynk.executor.queue.size", "1024"));
+        OrderedExecutor blynkExecutor = new OrderedExecutor("blynk-worker", blynkWorkerThreads, blynkQueueSize);
+        BlynkServer blynkServer = new BlynkServer(blynkPort, deviceInfoService, pinService, tokenValidator, blynkExecutor,
+            rateLimiter, rawDataService, transport, cfg);
         blynkServer.start();
 
         // start WebSocket server for app clients (with heartbeat and pin updates)
         int wsPort = Integer.parseInt(cfg.get("server.websocket.port", "9001"));
         WebSocketFrameHandler wsFrameHandler = new WebSocketFrameHandler();
-        WebSocketServer wsServer = new WebSocketServer(wsPort, null, wsFrameHandler); // null = no SSL for now
+        WebSocketServer wsServer = new WebSocketServer(wsPort, null, wsFrameHandler, transport); // null = no SSL for now
         wsServer.start();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -100,7 +198,9 @@ public class App
                 server.stop();
                 httpServer.stop();
                 blynkServer.stop();
+                blynkExecutor.shutdown();
                 wsServer.stop();
+                transport.shutdown();
                 RedisClientManager.close();
                 PostgresDataSource.close();
             } catch (Exception e) {
@@ -149,18 +249,109 @@ public class App
                 "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE)");
 
             // Create raw_data table for storing virtual pin writes (optional)
-            s.execute("CREATE TABLE IF NOT EXISTS raw_data (" +
-                "id SERIAL PRIMARY KEY, userid TEXT NOT NULL, dashid BIGINT NOT NULL, " +
-                "devid BIGINT NOT NULL, pin TEXT NOT NULL, value TEXT NOT NULL, " +
-                "ts BIGINT NOT NULL DEFAULT " + System.currentTimeMillis() + ", " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            boolean partitioned = Boolean.parseBoolean(cfg.get("rawdata.partitioned", "false"));
+            // v2: numbers in a double column (text only when needed), pin as smallint, an int device key
+            // instead of userid/dashid/devid, and no created_at. 8-byte columns first so rows carry no padding
+            boolean typed = "v2".equalsIgnoreCase(cfg.get("rawdata.schema", "v1"));
+            String typedColumns = "id BIGSERIAL, ts BIGINT NOT NULL, num DOUBLE PRECISION, " +
+                "devkey INT NOT NULL, pin SMALLINT NOT NULL, value TEXT";
+            if (partitioned && !tableExists(c, "raw_data") && typed) {
+                s.execute("CREATE TABLE raw_data (" + typedColumns + ", PRIMARY KEY (id, ts)) PARTITION BY RANGE (ts)");
+                s.execute("CREATE TABLE IF NOT EXISTS raw_data_default PARTITION OF raw_data DEFAULT");
+                log.info("Created partitioned raw_data table (v2)");
+            } else if (partitioned && !tableExists(c, "raw_data")) {
+                // One partition per UTC day on ts (epoch ms); retention drops whole partitions.
+                // Partitions are created ahead by RawDataService; rows outside them land in the default one
+                s.execute("CREATE TABLE raw_data (" +
+                    "id BIGSERIAL, userid TEXT NOT NULL, dashid BIGINT NOT NULL, " +
+                    "devid BIGINT NOT NULL, pin TEXT NOT NULL, value TEXT NOT NULL, " +
+                    "ts BIGINT NOT NULL, " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "PRIMARY KEY (id, ts), " +
+                    "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE) " +
+                    "PARTITION BY RANGE (ts)");
+                s.execute("CREATE TABLE IF NOT EXISTS raw_data_default PARTITION OF raw_data DEFAULT");
+                log.info("Created partitioned raw_data table");
+            } else if (partitioned) {
+                try (var rs = s.executeQuery("SELECT relkind FROM pg_class WHERE oid = to_regclass('raw_data')")) {
+                    if (rs.next() && !"p".equals(rs.getString(1))) {
+                        // Converting an existing table means rewriting it; leave that to a manual migration
+                        log.warn("rawdata.partitioned=true but raw_data already exists as a plain table, keeping row deletes for retention");
+                        partitioned = false;
+                    }
+                }
+                if (partitioned) {
+                    s.execute("CREATE TABLE IF NOT EXISTS raw_data_default PARTITION OF raw_data DEFAULT");
+                }
+            } else if (typed) {
+                s.execute("CREATE TABLE IF NOT EXISTS raw_data (" + typedColumns + ", PRIMARY KEY (id))");
+            } else {
+                s.execute("CREATE TABLE IF NOT EXISTS raw_data (" +
+                    "id SERIAL PRIMARY KEY, userid TEXT NOT NULL, dashid BIGINT NOT NULL, " +
+                    "devid BIGINT NOT NULL, pin TEXT NOT NULL, value TEXT NOT NULL, " +
+                    "ts BIGINT NOT NULL DEFAULT " + System.currentTimeMillis() + ", " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE)");
+            }
+
+            // The layout of an existing table wins; converting it means rewriting it, leave that to a manual migration
+            boolean rawTyped = columnExists(c, "raw_data", "devkey");
+            if (typed != rawTyped) {
+                log.warn("rawdata.schema={} but raw_data already exists with the {} layout, keeping it",
+                    typed ? "v2" : "v1", rawTyped ? "v2" : "v1");
+            }
+            if (rawTyped) {
+                // Device key for v2 rows. No foreign key from raw_data: it would cost a lookup per inserted row
+                s.execute("CREATE TABLE IF NOT EXISTS raw_device (" +
+                    "devkey SERIAL PRIMARY KEY, userid TEXT NOT NULL, dashid BIGINT NOT NULL, devid BIGINT NOT NULL, " +
+                    "UNIQUE (userid, dashid, devid), " +
+                    "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE)");
+            }
+
+            // Newest value per device/pin, upserted with every raw_data batch; survives retention
+            if (!tableExists(c, "pin_latest")) {
+                s.execute("CREATE TABLE pin_latest (" +
+                    "devid BIGINT NOT NULL, pin TEXT NOT NULL, userid TEXT NOT NULL, dashid BIGINT NOT NULL, " +
+                    "value TEXT NOT NULL, ts BIGINT NOT NULL, " +
+                    "PRIMARY KEY (devid, pin), " +
+                    "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE)");
+                // Seed from the history that is already there
+                if (rawTyped) {
+                    s.execute("INSERT INTO pin_latest (devid, pin, userid, dashid, value, ts) " +
+                        "SELECT DISTINCT ON (d.devid, r.pin) d.devid, 'V' || r.pin, d.userid, d.dashid, " +
+                        "COALESCE(r.value, r.num::text), r.ts FROM raw_data r JOIN raw_device d ON d.devkey = r.devkey " +
+                        "ORDER BY d.devid, r.pin, r.ts DESC, r.id DESC");
+                } else {
+                    s.execute("INSERT INTO pin_latest (devid, pin, userid, dashid, value, ts) " +
+                        "SELECT DISTINCT ON (devid, pin) devid, pin, userid, dashid, value, ts FROM raw_data " +
+                        "ORDER BY devid, pin, ts DESC, id DESC");
+                }
+            }
+
+            // Minute/hour/day aggregates of numeric pin values (resolution in seconds, bucket = start ms)
+            s.execute("CREATE TABLE IF NOT EXISTS raw_data_rollup (" +
+                "devid BIGINT NOT NULL, pin TEXT NOT NULL, resolution INT NOT NULL, bucket BIGINT NOT NULL, " +
+                "userid TEXT NOT NULL, dashid BIGINT NOT NULL, " +
+                "min DOUBLE PRECISION NOT NULL, max DOUBLE PRECISION NOT NULL, " +
+                "sum DOUBLE PRECISION NOT NULL, count BIGINT NOT NULL, " +
+                "PRIMARY KEY (devid, pin, resolution, bucket), " +
                 "FOREIGN KEY (userid) REFERENCES users(id) ON DELETE CASCADE)");
+            // Rollup retention and the startup rebuild select by resolution and bucket age
+            s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_rollup_bucket ON raw_data_rollup(resolution, bucket)");
 
             // Create indexes for raw_data
-            s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_userid_dashid_devid " +
-                "ON raw_data(userid, dashid, devid)");
-            s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_ts ON raw_data(ts)");
-            s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_pin ON raw_data(pin)");
+            if (rawTyped) {
+                // One index serves history reads without touching the heap (keyset order is ts, id);
+                // ts is append-ordered, so retention deletes only need a tiny BRIN index
+                s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_series " +
+                    "ON raw_data(devkey, pin, ts, id) INCLUDE (num, value)");
+                s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_ts ON raw_data USING brin (ts)");
+            } else {
+                s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_userid_dashid_devid " +
+                    "ON raw_data(userid, dashid, devid)");
+                s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_ts ON raw_data(ts)");
+                s.execute("CREATE INDEX IF NOT EXISTS idx_raw_data_pin ON raw_data(pin)");
+            }
 
             // Create simple devices table
             s.execute("CREATE TABLE IF NOT EXISTS devices (" +
@@ -184,4 +375,24 @@ public class App
             throw new RuntimeException(e);
         }
     }
+
+    private static boolean tableExists(java.sql.Connection c, String name) throws java.sql.SQLException {
+        try (var ps = c.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            ps.setString(1, name);
+            try (var rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static boolean columnExists(java.sql.Connection c, String table, String column) throws java.sql.SQLException {
+        try (var ps = c.prepareStatement(
+                "SELECT 1 FROM information_schema.columns WHERE table_name = ? AND column_name = ?")) {
+            ps.setString(1, table);
+            ps.setString(2, column);
+            try (var rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
 }
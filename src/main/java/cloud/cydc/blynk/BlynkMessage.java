@@ -1,76 +1,93 @@
 package cloud.cydc.blynk;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
 
 /**
  * Blynk Protocol Message
+ *
+ * The body is a reference-counted ByteBuf. Messages produced by {@link BlynkMessageDecoder}
+ * hold a retained slice of the inbound pooled buffer, so whoever consumes the message must
+ * release it (SimpleChannelInboundHandler and MessageToByteEncoder do this automatically).
  */
-public class BlynkMessage {
+public class BlynkMessage extends DefaultByteBufHolder {
     private final byte command;
     private final int messageId;
-    private final byte[] body;
     private int statusCode; // For RESPONSE messages
-    
-    public BlynkMessage(byte command, int messageId, byte[] body) {
+
+    public BlynkMessage(byte command, int messageId, ByteBuf body) {
+        super(body != null ? body : Unpooled.EMPTY_BUFFER);
         this.command = command;
         this.messageId = messageId;
-        this.body = body != null ? body : new byte[0];
         this.statusCode = 0;
     }
-    
+
+    public BlynkMessage(byte command, int messageId, byte[] body) {
+        this(command, messageId, body != null && body.length > 0 ? Unpooled.wrappedBuffer(body) : Unpooled.EMPTY_BUFFER);
+    }
+
     public BlynkMessage(byte command, int messageId, int statusCode) {
-        this.command = command;
-        this.messageId = messageId;
-        this.body = new byte[0];
+        this(command, messageId, Unpooled.EMPTY_BUFFER);
         this.statusCode = statusCode;
     }
-    
+
     public byte getCommand() {
         return command;
     }
-    
+
     public int getMessageId() {
         return messageId;
     }
-    
+
+    /**
+     * Copy of the body bytes. Prefer {@link #content()} on hot paths.
+     */
     public byte[] getBody() {
-        return body;
+        return ByteBufUtil.getBytes(content());
     }
-    
+
     public String getBodyAsString() {
-        if (body == null || body.length == 0) return "";
-        return new String(body);
+        ByteBuf body = content();
+        if (!body.isReadable()) return "";
+        return body.toString(StandardCharsets.UTF_8);
     }
-    
+
     public int getLength() {
-        return body != null ? body.length : 0;
+        return content().readableBytes();
     }
-    
+
     public int getStatusCode() {
         return statusCode;
     }
-    
+
     /**
      * Encode message to ByteBuf
      * Format: [Command(1)][MessageId(2)][Length(2)][Body(Length)]
      * For RESPONSE: [Command(1)][MessageId(2)][StatusCode(2)]
+     * Does not move the body reader index, so the message can be encoded more than once.
      */
     public void encode(ByteBuf out) {
+        ByteBuf body = content();
+        int length = body.readableBytes();
         out.writeByte(command);
         out.writeShort(messageId);
-        
+
         // For RESPONSE messages, encode status code in length field position
-        if (command == BlynkProtocol.BLYNK_CMD_RESPONSE && body.length == 0) {
+        if (command == BlynkProtocol.BLYNK_CMD_RESPONSE && length == 0) {
             out.writeShort(statusCode);
         } else {
             // Normal messages: write length then body
-            out.writeShort(getLength());
-            if (body != null && body.length > 0) {
-                out.writeBytes(body);
+            out.writeShort(length);
+            if (length > 0) {
+                out.writeBytes(body, body.readerIndex(), length);
             }
         }
     }
-    
+
     /**
      * Create response message
      * For hardware protocol, status code is encoded in length field, not body
@@ -78,7 +95,7 @@ public class BlynkMessage {
     public static BlynkMessage response(int messageId, short status) {
         return new BlynkMessage(BlynkProtocol.BLYNK_CMD_RESPONSE, messageId, (int)status);
     }
-    
+
     /**
      * Create response with body
      */
@@ -86,21 +103,53 @@ public class BlynkMessage {
         if (responseBody == null || responseBody.isEmpty()) {
             return new BlynkMessage(BlynkProtocol.BLYNK_CMD_RESPONSE, messageId, (int)status);
         }
-        
+
         // Response with body: status code in first 2 bytes + body
         byte[] bodyBytes = responseBody.getBytes();
         byte[] combined = new byte[2 + bodyBytes.length];
         combined[0] = (byte) (status >> 8);
         combined[1] = (byte) status;
         System.arraycopy(bodyBytes, 0, combined, 2, bodyBytes.length);
-        
+
         return new BlynkMessage(BlynkProtocol.BLYNK_CMD_RESPONSE, messageId, combined);
     }
-    
+
+    @Override
+    public BlynkMessage replace(ByteBuf content) {
+        BlynkMessage msg = new BlynkMessage(command, messageId, content);
+        msg.statusCode = statusCode;
+        return msg;
+    }
+
+    @Override
+    public BlynkMessage retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public BlynkMessage retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public BlynkMessage touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public BlynkMessage touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+
     @Override
     public String toString() {
+        int length = refCnt() > 0 ? getLength() : 0;
         return String.format("BlynkMessage[cmd=%s, msgId=%d, len=%d, body=%s]",
-            BlynkProtocol.getCommandName(command), messageId, getLength(),
-            getLength() > 0 ? getBodyAsString() : "empty");
+            BlynkProtocol.getCommandName(command), messageId, length,
+            length > 0 ? getBodyAsString() : "empty");
     }
 }
@@ -1,6 +1,7 @@
 package cloud.cydc.blynk;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import org.slf4j.Logger;
@@ -57,11 +58,8 @@ public class BlynkMessageDecoder extends ByteToMessageDecoder {
             return;
         }
         
-        // Read body
-        byte[] body = new byte[length];
-        if (length > 0) {
-            in.readBytes(body);
-        }
+        // Body is a retained slice of the inbound buffer (no copy), released by the consumer
+        ByteBuf body = length > 0 ? in.readRetainedSlice(length) : Unpooled.EMPTY_BUFFER;
         
         BlynkMessage msg = new BlynkMessage(command, messageId, body);
         log.debug("Decoded: {}", msg);
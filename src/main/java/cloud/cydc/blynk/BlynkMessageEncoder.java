@@ -20,4 +20,11 @@ public class BlynkMessageEncoder extends MessageToByteEncoder<BlynkMessage> {
         int bytesWritten = out.writerIndex() - startIndex;
         log.debug("Encoded {} bytes for msgId={}", bytesWritten, msg.getMessageId());
     }
+    
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, BlynkMessage msg, boolean preferDirect) throws Exception {
+        // Exact frame size so the body is copied once, straight into the outbound buffer
+        int size = BlynkProtocol.BLYNK_HEADER_SIZE + msg.getLength();
+        return preferDirect ? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+    }
 }
@@ -85,6 +85,8 @@ public class BlynkProtocol {
             case BLYNK_CMD_ACTIVATE: return "ACTIVATE";
             case BLYNK_CMD_DEACTIVATE: return "DEACTIVATE";
             case BLYNK_CMD_REFRESH: return "REFRESH";
+            case BLYNK_CMD_GET_GRAPH_DATA: return "GET_GRAPH_DATA";
+            case BLYNK_CMD_GET_GRAPH_DATA_RESPONSE: return "GET_GRAPH_DATA_RESPONSE";
             default: return "UNKNOWN(" + cmd + ")";
         }
     }
@@ -1,29 +1,61 @@
 package cloud.cydc.blynk;
 
+import cloud.cydc.model.DeviceIdentity;
 import cloud.cydc.service.DeviceInfoService;
+import cloud.cydc.service.RawDataService;
+import cloud.cydc.service.RollupAggregator;
 import cloud.cydc.service.VirtualPinService;
+import cloud.cydc.util.OrderedExecutor;
+import cloud.cydc.util.RateLimiter;
 import cloud.cydc.util.TokenValidator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles Blynk protocol messages for ESP32 devices
  * Compatible with Blynk Library v0.6.1
+ * Stateless and shared by all channels: the identity resolved at login lives in
+ * the {@link #IDENTITY} channel attribute.
  */
+@ChannelHandler.Sharable
 public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessage> {
     private static final Logger log = LoggerFactory.getLogger(BlynkProtocolHandler.class);
     
+    // Identity of the authenticated device, set once on successful login
+    public static final AttributeKey<DeviceIdentity> IDENTITY = AttributeKey.valueOf("blynk.identity");
+    
+    // Bridge channel -> target device ID, only touched from the device's own lane
+    private static final AttributeKey<Map<String, Long>> BRIDGES = AttributeKey.valueOf("blynk.bridges");
+    private static final int MAX_BRIDGES = 16;
+    
     private final DeviceInfoService deviceService;
     private final VirtualPinService pinService;
     private final TokenValidator tokenValidator;
-    
-    // Track authenticated sessions
-    private final Map<ChannelHandlerContext, String> authenticatedSessions = new ConcurrentHashMap<>();
+    // Runs blocking Redis/JDBC work off the event loop, ordered per device (null = run inline)
+    private final OrderedExecutor businessExecutor;
+    // Max distinct pins buffered per device while its channel is not writable
+    private final int outboundMaxPending;
+    // Per-device/per-user write limits (null = unlimited)
+    private final RateLimiter rateLimiter;
+    // Answer vw only after Redis acknowledged the write (otherwise as soon as it is in memory)
+    private final boolean ackAfterPersist;
+    // Source of GET_GRAPH_DATA series (null = no history stored)
+    private final RawDataService rawDataService;
+    private static final int MAX_GRAPH_PINS = 8;
     
     // Track active connections by device ID
     private static final Map<Long, ChannelHandlerContext> activeConnections = new ConcurrentHashMap<>();
@@ -31,9 +63,25 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
     public BlynkProtocolHandler(DeviceInfoService deviceService, 
                                  VirtualPinService pinService,
                                  TokenValidator tokenValidator) {
+        this(deviceService, pinService, tokenValidator, null, 64, null, false, null);
+    }
+    
+    public BlynkProtocolHandler(DeviceInfoService deviceService, 
+                                 VirtualPinService pinService,
+                                 TokenValidator tokenValidator,
+                                 OrderedExecutor businessExecutor,
+                                 int outboundMaxPending,
+                                 RateLimiter rateLimiter,
+                                 boolean ackAfterPersist,
+                                 RawDataService rawDataService) {
         this.deviceService = deviceService;
         this.pinService = pinService;
         this.tokenValidator = tokenValidator;
+        this.businessExecutor = businessExecutor;
+        this.outboundMaxPending = outboundMaxPending;
+        this.rateLimiter = rateLimiter;
+        this.ackAfterPersist = ackAfterPersist;
+        this.rawDataService = rawDataService;
     }
     
     /**
@@ -50,31 +98,77 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
         }
         
         ChannelHandlerContext ctx = activeConnections.get(deviceId);
-        log.info("[Blynk] sendHardwareCommand called: deviceId={}, pin={}, value={}, ctx={}", 
-                 deviceId, pin, value, ctx != null ? "found" : "NULL");
-        
-        if (ctx != null && ctx.channel().isActive()) {
-            // Format: vw\0<pin>\0<value> - same as hardware sends to server
-            String body = "vw\0" + pin + "\0" + value;
-            BlynkMessage msg = new BlynkMessage(
-                BlynkProtocol.BLYNK_CMD_HARDWARE,
-                1, // message ID (can be any - hardware will not check)
-                body.getBytes()
-            );
-            
-            log.info("[Blynk] Sending HARDWARE command to device {}: body='{}', bytes={}", 
-                     deviceId, body.replace("\0", "\\0"), body.getBytes().length);
-            ctx.writeAndFlush(msg);
-            log.info("[Blynk] Message sent successfully to device {}: V{} = {}", deviceId, pin, value);
-        } else {
-            log.warn("[Blynk] Device {} not connected or channel inactive", deviceId);
+        HardwareOutbox outbox = ctx != null ? ctx.channel().attr(HardwareOutbox.KEY).get() : null;
+        if (outbox == null) {
+            log.debug("[Blynk] Device {} not connected, dropping V{} = {}", deviceId, pin, value);
+            return;
         }
+        
+        // Format: vw\0<pin>\0<value> - same as hardware sends to server
+        outbox.offer(pin, value);
+        log.debug("[Blynk] Queued HARDWARE command for device {}: V{} = {}", deviceId, pin, value);
+    }
+    
+    public static Map<String, Object> getOutboundStats() {
+        Map<String, Object> stats = HardwareOutbox.getStats();
+        stats.put("activeConnections", activeConnections.size());
+        stats.put("staleConnectionsClosed", HeartbeatMonitor.getEvictedConnections());
+        return stats;
     }
     
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, BlynkMessage msg) throws Exception {
-        log.info("[Blynk] Received: {}", msg);
+        log.debug("[Blynk] Received: {}", msg);
+        
+        // PING never blocks, answer it straight from the event loop
+        if (msg.getCommand() == BlynkProtocol.BLYNK_CMD_PING) {
+            handlePing(ctx, msg);
+            return;
+        }
+        
+        if (businessExecutor == null) {
+            process(ctx, msg);
+            return;
+        }
         
+        // The message outlives channelRead0, keep the body slice alive until the task is done
+        msg.retain();
+        boolean queued = businessExecutor.execute(partitionKey(ctx, msg), () -> {
+            try {
+                process(ctx, msg);
+            } finally {
+                msg.release();
+            }
+        });
+        if (!queued) {
+            msg.release();
+            log.warn("[Blynk] Business queue full, rejecting {} from {}", 
+                BlynkProtocol.getCommandName(msg.getCommand()), ctx.channel().remoteAddress());
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_QUOTA_LIMIT_EXCEPTION);
+        }
+    }
+    
+    /**
+     * Partition by device ID so one device's messages stay in order.
+     * Before login the device ID comes from the token itself, so LOGIN and the
+     * HARDWARE messages that follow it land on the same lane.
+     */
+    private long partitionKey(ChannelHandlerContext ctx, BlynkMessage msg) {
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).get();
+        if (identity != null) {
+            return identity.getDevId();
+        }
+        byte command = msg.getCommand();
+        if (command == BlynkProtocol.BLYNK_CMD_LOGIN || command == BlynkProtocol.BLYNK_CMD_LOGIN_2) {
+            DeviceIdentity claimed = tokenValidator.parseIdentity(msg.getBodyAsString());
+            if (claimed != null) {
+                return claimed.getDevId();
+            }
+        }
+        return ctx.channel().id().hashCode();
+    }
+    
+    private void process(ChannelHandlerContext ctx, BlynkMessage msg) {
         byte command = msg.getCommand();
         int messageId = msg.getMessageId();
         
@@ -85,14 +179,14 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
                     handleLogin(ctx, msg);
                     break;
                     
-                case BlynkProtocol.BLYNK_CMD_PING:
-                    handlePing(ctx, msg);
-                    break;
-                    
                 case BlynkProtocol.BLYNK_CMD_HARDWARE:
                     handleHardware(ctx, msg);
                     break;
                     
+                case BlynkProtocol.BLYNK_CMD_HARDWARE_SYNC:
+                    handleHardwareSync(ctx, msg);
+                    break;
+                    
                 case BlynkProtocol.BLYNK_CMD_INTERNAL:
                     handleInternal(ctx, msg);
                     break;
@@ -101,10 +195,14 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
                     handleBridge(ctx, msg);
                     break;
                     
+                case BlynkProtocol.BLYNK_CMD_GET_GRAPH_DATA:
+                    handleGetGraphData(ctx, msg);
+                    break;
+                    
                 default:
                     log.warn("[Blynk] Unsupported command: {} ({}), msgId: {}, body length: {}", 
-                        BlynkProtocol.getCommandName(command), command, messageId, msg.getBody().length);
-                    if (msg.getBody().length > 0 && msg.getBody().length < 100) {
+                        BlynkProtocol.getCommandName(command), command, messageId, msg.getLength());
+                    if (msg.getLength() > 0 && msg.getLength() < 100) {
                         log.warn("[Blynk] Body content: {}", msg.getBodyAsString());
                     }
                     sendResponse(ctx, messageId, BlynkProtocol.BLYNK_ILLEGAL_COMMAND);
@@ -131,19 +229,22 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
         }
         
         // Validate token
-        if (tokenValidator.validateToken(token)) {
-            authenticatedSessions.put(ctx, token);
+        DeviceIdentity identity = tokenValidator.resolve(token);
+        if (identity != null) {
+            ctx.channel().attr(IDENTITY).set(identity);
+            ctx.channel().attr(HardwareOutbox.KEY).set(new HardwareOutbox(ctx, outboundMaxPending));
             
             // Register active connection by device ID
-            String[] tokenInfo = tokenValidator.extractTokenInfo(token);
-            if (tokenInfo != null) {
-                try {
-                    long deviceId = Long.parseLong(tokenInfo[2]);
-                    activeConnections.put(deviceId, ctx);
-                    log.info("[Blynk] Device {} registered in active connections", deviceId);
-                } catch (NumberFormatException e) {
-                    log.error("[Blynk] Invalid device ID in token", e);
-                }
+            ChannelHandlerContext previous = activeConnections.put(identity.getDevId(), ctx);
+            if (previous != null && previous != ctx) {
+                log.info("[Blynk] Device {} reconnected, replacing previous channel {}", 
+                    identity.getDevId(), previous.channel().remoteAddress());
+            }
+            log.info("[Blynk] Device {} registered in active connections", identity.getDevId());
+            if (!ctx.channel().isActive()) {
+                // Channel closed while the login was queued; channelInactive already ran
+                activeConnections.remove(identity.getDevId(), ctx);
+                return;
             }
             
             log.info("[Blynk] Login successful for token: {}", token);
@@ -170,142 +271,236 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
      * Body format: "vw\0<pin>\0<value>" or "vr\0<pin>"
      */
     private void handleHardware(ChannelHandlerContext ctx, BlynkMessage msg) {
-        String token = authenticatedSessions.get(ctx);
-        if (token == null) {
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).get();
+        if (identity == null) {
             log.warn("[Blynk] Not authenticated");
             sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_AUTHENTICATED);
             return;
         }
         
-        String body = msg.getBodyAsString();
-        String[] parts = body.split("\0");
-        
-        log.debug("[Blynk] Hardware body parts: {} (total: {})", java.util.Arrays.toString(parts), parts.length);
+        HardwareCommand cmd = HardwareCommand.parse(msg.content());
+        if (cmd == null) {
+            log.warn("[Blynk] Invalid hardware command body: {}", msg.getBodyAsString());
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            return;
+        }
         
-        if (parts.length < 2) {
-            log.warn("[Blynk] Invalid hardware command body: {}", body);
+        long devId = identity.getDevId();
+        int pinNum = cmd.pin();
+        if (pinNum < 0 || pinNum >= VirtualPinService.MAX_PINS) {
+            log.warn("[Blynk] Pin V{} out of range from device {}", pinNum, devId);
             sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
             return;
         }
+        switch (cmd.command()) {
+            case HardwareCommand.VIRTUAL_WRITE:
+                if (!cmd.hasValue()) {
+                    log.warn("[Blynk] Missing value for vw command");
+                    sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+                    return;
+                }
+                if (throttled(ctx, msg, identity)) {
+                    return;
+                }
+                
+                try {
+                    // Use broadcast version to queue for DB sync (exclude source device to prevent echo)
+                    CompletableFuture<Void> persisted = pinService.setPinValueWithBroadcast(identity.getUserId(),
+                        identity.getDashId(), devId, pinNum, cmd.value(), devId);
+                    log.debug("[Blynk] Virtual pin write: V{} = {} (from device {})", pinNum, cmd.value(), devId);
+                    if (ackAfterPersist) {
+                        int messageId = msg.getMessageId();
+                        persisted.whenComplete((v, err) -> {
+                            if (err != null) {
+                                log.warn("[Blynk] Pin write for device {} not persisted: {}", devId, err.getMessage());
+                            }
+                            sendResponse(ctx, messageId, err == null
+                                ? BlynkProtocol.BLYNK_SUCCESS : BlynkProtocol.BLYNK_SERVER_EXCEPTION);
+                        });
+                        pinService.requestFlush();
+                    } else {
+                        sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_SUCCESS);
+                    }
+                } catch (Exception e) {
+                    log.error("[Blynk] Error setting pin value", e);
+                    sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+                }
+                break;
+                
+            case HardwareCommand.VIRTUAL_READ: {
+                // Virtual read - send current value back, 0 if nothing stored
+                String value = pinService.getPinValueOrLatest(devId, pinNum);
+                BlynkMessage response = new BlynkMessage(
+                    BlynkProtocol.BLYNK_CMD_HARDWARE,
+                    msg.getMessageId(),
+                    virtualWriteBody(ctx.alloc(), pinNum, value != null ? value : "0")
+                );
+                ctx.writeAndFlush(response);
+                log.debug("[Blynk] Virtual pin read: V{} = {}", pinNum, value != null ? value : "0 (default)");
+                break;
+            }
+                
+            default:
+                log.warn("[Blynk] Unknown hardware command in body: {}", msg.getBodyAsString());
+                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND);
+        }
+    }
+    
+    /**
+     * Handle HARDWARE_SYNC command (Blynk.syncAll() / Blynk.syncVirtual(...))
+     * Body: empty for all pins, or "vr\0<pin>\0<pin>..." for specific pins.
+     * Replies with one HARDWARE "vw" frame per stored value, read with a single bulk
+     * lookup and written as one burst with a single flush.
+     */
+    private void handleHardwareSync(ChannelHandlerContext ctx, BlynkMessage msg) {
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).get();
+        if (identity == null) {
+            log.warn("[Blynk] Not authenticated");
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_AUTHENTICATED);
+            return;
+        }
         
-        String command = parts[0]; // "vw" or "vr"
-        String pin = parts[1];     // Pin number like "5" or "V5"
+        String[] values = pinService.getAllPinValuesOrLatest(identity.getDevId());
         
-        // Extract token info
-        String[] tokenInfo = tokenValidator.extractTokenInfo(token);
-        if (tokenInfo == null) {
-            log.error("[Blynk] Failed to extract token info");
-            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_INVALID_TOKEN);
+        ByteBuf body = msg.content();
+        int sent = 0;
+        if (!body.isReadable()) {
+            for (int pin = 0; pin < values.length; pin++) {
+                if (values[pin] != null) {
+                    writeSyncValue(ctx, msg.getMessageId(), pin, values[pin]);
+                    sent++;
+                }
+            }
+        } else {
+            // Skip the "vr" field, then every following field is a pin number
+            int end = body.writerIndex();
+            int from = body.indexOf(body.readerIndex(), end, (byte) 0);
+            while (from >= 0 && from < end) {
+                int start = from + 1;
+                int next = body.indexOf(start, end, (byte) 0);
+                int fieldEnd = next < 0 ? end : next;
+                int pin = parseSyncPin(body, start, fieldEnd);
+                if (pin >= 0 && pin < values.length && values[pin] != null) {
+                    writeSyncValue(ctx, msg.getMessageId(), pin, values[pin]);
+                    sent++;
+                }
+                from = next;
+            }
+        }
+        
+        if (sent > 0) {
+            ctx.flush();
+        }
+        log.debug("[Blynk] HARDWARE_SYNC for device {}: {} pin values sent", identity.getDevId(), sent);
+    }
+    
+    private void writeSyncValue(ChannelHandlerContext ctx, int messageId, int pin, String value) {
+        BlynkMessage frame = new BlynkMessage(BlynkProtocol.BLYNK_CMD_HARDWARE, messageId,
+            virtualWriteBody(ctx.alloc(), pin, value));
+        ctx.write(frame, ctx.voidPromise());
+    }
+    
+    private static int parseSyncPin(ByteBuf body, int from, int to) {
+        if (from < to && (body.getByte(from) == 'V' || body.getByte(from) == 'v')) from++;
+        if (from >= to || to - from > 3) return -1;
+        int pin = 0;
+        for (int i = from; i < to; i++) {
+            int d = body.getByte(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            pin = pin * 10 + d;
+        }
+        return pin;
+    }
+    
+    /**
+     * Handle GET_GRAPH_DATA command
+     * Body: "<dashId>[-<devId>]\0v\0<pin>\0<count>\0<m|h|d>[\0v\0<pin>\0<count>\0<m|h|d>...]"
+     * Each pin gets its last count minute/hour/day averages from the rollup table (plus the buckets
+     * still open in memory, so the current one is included), sent back
+     * in one GET_GRAPH_DATA_RESPONSE frame (see {@link GraphData} for the layout).
+     */
+    private void handleGetGraphData(ChannelHandlerContext ctx, BlynkMessage msg) throws IOException {
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).get();
+        if (identity == null) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_AUTHENTICATED);
+            return;
+        }
+        if (rawDataService == null || !rawDataService.isEnabled()) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_GET_GRAPH_DATA_EXCEPTION);
             return;
         }
         
-        String userId = tokenInfo[0];
-        String deviceId = tokenInfo[2];
+        String[] parts = msg.getBodyAsString().split("\0");
+        int pins = (parts.length - 1) / 4;
+        if (parts.length < 5 || (parts.length - 1) % 4 != 0 || pins > MAX_GRAPH_PINS) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            return;
+        }
         
-        // Parse deviceId to long for VirtualPinService
-        long devId;
+        long dashId;
+        long devId = identity.getDevId();
         try {
-            devId = Long.parseLong(deviceId);
+            int dash = parts[0].indexOf('-');
+            dashId = Long.parseLong(dash < 0 ? parts[0] : parts[0].substring(0, dash));
+            if (dash >= 0) {
+                devId = Long.parseLong(parts[0].substring(dash + 1));
+            }
         } catch (NumberFormatException e) {
-            log.error("[Blynk] Invalid device ID in token: {}", deviceId);
-            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_INVALID_TOKEN);
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            return;
+        }
+        if (dashId != identity.getDashId()) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_ALLOWED);
             return;
         }
         
-        if ("vw".equals(command)) {
-            // Virtual write
-            if (parts.length < 3) {
-                log.warn("[Blynk] Missing value for vw command");
-                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
-                return;
-            }
-            
-            String value = parts[2];
-            
-            // Parse pin number - could be "5" or "V5"
-            int pinNum;
-            if (pin.startsWith("V") || pin.startsWith("v")) {
+        long now = System.currentTimeMillis();
+        try (GraphData graph = new GraphData()) {
+            for (int i = 0; i < pins; i++) {
+                int base = 1 + i * 4;
+                int pin, count, resolution;
                 try {
-                    pinNum = Integer.parseInt(pin.substring(1));
+                    pin = Integer.parseInt(parts[base + 1]);
+                    count = Math.min(Integer.parseInt(parts[base + 2]), GraphData.MAX_POINTS);
+                    resolution = graphResolution(parts[base + 3]);
                 } catch (NumberFormatException e) {
-                    log.warn("[Blynk] Invalid virtual pin: {}", pin);
-                    sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
-                    return;
+                    resolution = -1;
+                    pin = count = 0;
                 }
-            } else {
-                try {
-                    pinNum = Integer.parseInt(pin);
-                } catch (NumberFormatException e) {
-                    log.warn("[Blynk] Invalid virtual pin: {}", pin);
+                // Only virtual pins are stored
+                if (!"v".equalsIgnoreCase(parts[base]) || resolution < 0 || pin < 0 || pin >= VirtualPinService.MAX_PINS || count <= 0) {
                     sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
                     return;
                 }
+                long from = RollupAggregator.bucketStart(now, resolution) - (count - 1L) * resolution * 1000L;
+                graph.beginSeries();
+                rawDataService.streamRollups(identity.getUserId(), devId, "V" + pin, resolution, from, now,
+                    (bucket, min, max, sum, n) -> graph.add(sum / n, bucket));
+                graph.endSeries();
             }
-            
-            try {
-                // Use broadcast version to queue for DB sync (exclude source device to prevent echo)
-                pinService.setPinValueWithBroadcast(userId, deviceId, pinNum, value, devId);
-                log.info("[Blynk] Virtual pin write: V{} = {} (from device {})", pinNum, value, devId);
-                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_SUCCESS);
-            } catch (Exception e) {
-                log.error("[Blynk] Error setting pin value", e);
-                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
-            }
-            
-        } else if ("vr".equals(command)) {
-            // Virtual read - send current value back
-            // Parse pin number - could be "5" or "V5"
-            int pinNum;
-            if (pin.startsWith("V") || pin.startsWith("v")) {
-                try {
-                    pinNum = Integer.parseInt(pin.substring(1));
-                } catch (NumberFormatException e) {
-                    log.warn("[Blynk] Invalid virtual pin: {}", pin);
-                    sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
-                    return;
-                }
-            } else {
-                try {
-                    pinNum = Integer.parseInt(pin);
-                } catch (NumberFormatException e) {
-                    log.warn("[Blynk] Invalid virtual pin: {}", pin);
-                    sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
-                    return;
-                }
+        
+            if (graph.getTotalPoints() == 0) {
+                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NO_DATA_EXCEPTION);
+                return;
             }
-            
-            try {
-                String value = pinService.getPinValue(devId, pinNum);
-                
-                if (value != null) {
-                    // Send hardware command back to client with current value
-                    String responseBody = "vw\0" + pinNum + "\0" + value;
-                    BlynkMessage response = new BlynkMessage(
-                        BlynkProtocol.BLYNK_CMD_HARDWARE,
-                        msg.getMessageId(),
-                        responseBody.getBytes()
-                    );
-                    ctx.writeAndFlush(response);
-                    log.info("[Blynk] Virtual pin read: V{} = {}", pinNum, value);
-                } else {
-                    // No value stored, send 0
-                    String responseBody = "vw\0" + pinNum + "\00";
-                    BlynkMessage response = new BlynkMessage(
-                        BlynkProtocol.BLYNK_CMD_HARDWARE,
-                        msg.getMessageId(),
-                        responseBody.getBytes()
-                    );
-                    ctx.writeAndFlush(response);
-                    log.info("[Blynk] Virtual pin read: V{} = 0 (default)", pinNum);
-                }
-            } catch (NumberFormatException e) {
-                log.warn("[Blynk] Invalid pin number: {}", pin);
-                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            byte[] body = graph.finish();
+            if (body.length > 0xFFFF) {
+                // Does not fit the 16-bit length field
+                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_GET_GRAPH_DATA_EXCEPTION);
+                return;
             }
-            
-        } else {
-            log.warn("[Blynk] Unknown hardware command: {}", command);
-            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND);
+            ctx.writeAndFlush(new BlynkMessage(BlynkProtocol.BLYNK_CMD_GET_GRAPH_DATA_RESPONSE, msg.getMessageId(), body));
+            log.debug("[Blynk] GET_GRAPH_DATA for device {}: {} pins, {} points, {} bytes",
+                devId, pins, graph.getTotalPoints(), body.length);
+        }
+    }
+    
+    private static int graphResolution(String granularity) {
+        switch (granularity) {
+            case "m": return 60;
+            case "h": return 3600;
+            case "d": return 86400;
+            default: return -1;
         }
     }
     
@@ -313,16 +508,124 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
      * Handle INTERNAL command (property set, etc)
      */
     private void handleInternal(ChannelHandlerContext ctx, BlynkMessage msg) {
-        // For now, just acknowledge
+        // Body is "key\0value\0key\0value...", e.g. "ver\00.6.1\0h-beat\010\0buff-in\01024..."
+        String[] fields = msg.getBodyAsString().split("\0");
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            if ("h-beat".equals(fields[i])) {
+                try {
+                    int heartbeat = Integer.parseInt(fields[i + 1]);
+                    HeartbeatMonitor.setHeartbeat(ctx.channel(), heartbeat);
+                    log.debug("[Blynk] Heartbeat interval {}s from {}", heartbeat, ctx.channel().remoteAddress());
+                } catch (NumberFormatException e) {
+                    log.warn("[Blynk] Invalid h-beat value: {}", fields[i + 1]);
+                }
+            }
+        }
         sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_SUCCESS);
     }
     
     /**
      * Handle BRIDGE command (device-to-device communication)
+     * Setup: "<channel>\0i\0<target token>", then "<channel>\0vw\0<pin>\0<value>" is
+     * forwarded straight to the target's channel. Target tokens go through the token cache
+     * and writes are not stored in Redis.
      */
     private void handleBridge(ChannelHandlerContext ctx, BlynkMessage msg) {
-        // Not implemented yet
-        sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_ALLOWED);
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).get();
+        if (identity == null) {
+            log.warn("[Blynk] Not authenticated");
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_AUTHENTICATED);
+            return;
+        }
+        
+        ByteBuf body = msg.content();
+        int start = body.readerIndex();
+        int end = body.writerIndex();
+        int channelEnd = body.indexOf(start, end, (byte) 0);
+        if (channelEnd <= start) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            return;
+        }
+        String bridgeChannel = body.toString(start, channelEnd - start, StandardCharsets.US_ASCII);
+        ByteBuf command = body.slice(channelEnd + 1, end - channelEnd - 1);
+        
+        // Bridge setup: "<channel>\0i\0<target token>"
+        if (command.readableBytes() > 2 && command.getByte(0) == 'i' && command.getByte(1) == 0) {
+            String targetToken = command.toString(2, command.readableBytes() - 2, StandardCharsets.UTF_8);
+            DeviceIdentity target = tokenValidator.resolve(targetToken);
+            if (target == null) {
+                log.warn("[Blynk] Device {} bridge {}: invalid target token", identity.getDevId(), bridgeChannel);
+                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_INVALID_TOKEN);
+                return;
+            }
+            Map<String, Long> bridges = ctx.channel().attr(BRIDGES).get();
+            if (bridges == null) {
+                bridges = new HashMap<>();
+                ctx.channel().attr(BRIDGES).set(bridges);
+            }
+            if (!bridges.containsKey(bridgeChannel) && bridges.size() >= MAX_BRIDGES) {
+                log.warn("[Blynk] Device {} exceeded {} bridge channels", identity.getDevId(), MAX_BRIDGES);
+                sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_ALLOWED);
+                return;
+            }
+            bridges.put(bridgeChannel, target.getDevId());
+            log.info("[Blynk] Device {} bridge {} -> device {}", identity.getDevId(), bridgeChannel, target.getDevId());
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_SUCCESS);
+            return;
+        }
+        
+        // Forward: "<channel>\0vw\0<pin>\0<value>"
+        Map<String, Long> bridges = ctx.channel().attr(BRIDGES).get();
+        Long targetId = bridges != null ? bridges.get(bridgeChannel) : null;
+        if (targetId == null) {
+            log.warn("[Blynk] Device {} bridge {} used before init", identity.getDevId(), bridgeChannel);
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_NOT_ALLOWED);
+            return;
+        }
+        
+        HardwareCommand cmd = HardwareCommand.parse(command);
+        if (cmd == null || cmd.command() != HardwareCommand.VIRTUAL_WRITE || !cmd.hasValue()) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_ILLEGAL_COMMAND_BODY);
+            return;
+        }
+        
+        if (throttled(ctx, msg, identity)) {
+            return;
+        }
+        
+        ChannelHandlerContext targetCtx = activeConnections.get(targetId);
+        HardwareOutbox outbox = targetCtx != null ? targetCtx.channel().attr(HardwareOutbox.KEY).get() : null;
+        if (outbox == null) {
+            sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_DEVICE_WENT_OFFLINE);
+            return;
+        }
+        // Forwarded writes are not acknowledged, same as the original Blynk server
+        outbox.offer(cmd.pin(), cmd.value());
+        log.debug("[Blynk] Bridge {} -> {}: V{} = {}", identity.getDevId(), targetId, cmd.pin(), cmd.value());
+    }
+    
+    /**
+     * Answer QUOTA_LIMIT and return true if the device or its owner is over the write limit
+     */
+    private boolean throttled(ChannelHandlerContext ctx, BlynkMessage msg, DeviceIdentity identity) {
+        if (rateLimiter == null || rateLimiter.tryAcquire(identity.getUserId(), identity.getDevId())) {
+            return false;
+        }
+        log.debug("[Blynk] Device {} over rate limit, msgId {}", identity.getDevId(), msg.getMessageId());
+        sendResponse(ctx, msg.getMessageId(), BlynkProtocol.BLYNK_QUOTA_LIMIT_EXCEPTION);
+        return true;
+    }
+    
+    /**
+     * Build "vw\0<pin>\0<value>" directly into a pooled buffer
+     */
+    static ByteBuf virtualWriteBody(ByteBufAllocator alloc, int pin, String value) {
+        ByteBuf body = alloc.buffer(8 + value.length());
+        body.writeByte('v').writeByte('w').writeByte(0);
+        ByteBufUtil.writeAscii(body, Integer.toString(pin));
+        body.writeByte(0);
+        ByteBufUtil.writeUtf8(body, value);
+        return body;
     }
     
     /**
@@ -335,27 +638,32 @@ public class BlynkProtocolHandler extends SimpleChannelInboundHandler<BlynkMessa
     
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        String token = authenticatedSessions.remove(ctx);
+        DeviceIdentity identity = ctx.channel().attr(IDENTITY).getAndSet(null);
+        HardwareOutbox outbox = ctx.channel().attr(HardwareOutbox.KEY).getAndSet(null);
+        ctx.channel().attr(BRIDGES).set(null);
+        if (outbox != null) {
+            outbox.clear();
+        }
         
-        // Remove from active connections
-        if (token != null) {
-            String[] tokenInfo = tokenValidator.extractTokenInfo(token);
-            if (tokenInfo != null) {
-                try {
-                    long deviceId = Long.parseLong(tokenInfo[2]);
-                    activeConnections.remove(deviceId);
-                    log.info("[Blynk] Device {} removed from active connections", deviceId);
-                } catch (NumberFormatException e) {
-                    // ignore
-                }
-            }
+        // Remove from active connections, unless the device already reconnected on another channel
+        if (identity != null && activeConnections.remove(identity.getDevId(), ctx)) {
+            log.info("[Blynk] Device {} removed from active connections", identity.getDevId());
         }
         
         log.warn("[Blynk] Channel INACTIVE (client disconnected), was authenticated: {}, remote: {}", 
-            token != null, ctx.channel().remoteAddress());
+            identity != null, ctx.channel().remoteAddress());
         super.channelInactive(ctx);
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        HardwareOutbox outbox = ctx.channel().attr(HardwareOutbox.KEY).get();
+        if (outbox != null && ctx.channel().isWritable()) {
+            outbox.drain();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         // DO NOT call ctx.flush() here - writeAndFlush already handles it
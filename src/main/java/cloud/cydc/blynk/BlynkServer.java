@@ -1,15 +1,20 @@
 package cloud.cydc.blynk;
 
 import cloud.cydc.service.DeviceInfoService;
+import cloud.cydc.service.RawDataService;
 import cloud.cydc.service.VirtualPinService;
+import cloud.cydc.util.OrderedExecutor;
+import cloud.cydc.util.RateLimiter;
 import cloud.cydc.util.TokenValidator;
+import cloud.cydc.config.Config;
+import cloud.cydc.netty.NettyTransport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,39 +28,62 @@ public class BlynkServer {
     private final DeviceInfoService deviceService;
     private final VirtualPinService pinService;
     private final TokenValidator tokenValidator;
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private final OrderedExecutor businessExecutor;
+    private final RateLimiter rateLimiter;
+    private final RawDataService rawDataService;
+    private final NettyTransport transport;
+    private final Config cfg;
+    private Channel serverChannel;
+    private HeartbeatMonitor heartbeatMonitor;
 
     public BlynkServer(int port, 
                        DeviceInfoService deviceService, 
                        VirtualPinService pinService,
-                       TokenValidator tokenValidator) {
+                       TokenValidator tokenValidator,
+                       OrderedExecutor businessExecutor,
+                       RateLimiter rateLimiter,
+                       RawDataService rawDataService,
+                       NettyTransport transport,
+                       Config cfg) {
         this.port = port;
         this.deviceService = deviceService;
         this.pinService = pinService;
         this.tokenValidator = tokenValidator;
+        this.businessExecutor = businessExecutor;
+        this.rateLimiter = rateLimiter;
+        this.rawDataService = rawDataService;
+        this.transport = transport;
+        this.cfg = cfg;
     }
 
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        // Stateless business handler shared by every device connection
+        int outboundMaxPending = Integer.parseInt(cfg.get("blynk.outbound.max.pending", "64"));
+        BlynkProtocolHandler protocolHandler = new BlynkProtocolHandler(deviceService, pinService, tokenValidator,
+            businessExecutor, outboundMaxPending, rateLimiter,
+            Boolean.parseBoolean(cfg.get("blynk.ack.after.persist", "false")), rawDataService);
+        // Channel turns unwritable above the high mark; pin updates are then merged instead of buffered
+        int writeLowMark = Integer.parseInt(cfg.get("blynk.write.buffer.low", "8192"));
+        int writeHighMark = Integer.parseInt(cfg.get("blynk.write.buffer.high", "32768"));
+        // Drops connections that go silent for longer than their heartbeat allows
+        heartbeatMonitor = new HeartbeatMonitor(Integer.parseInt(cfg.get("blynk.heartbeat.default.seconds", "10")));
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .childHandler(new ChannelInitializer<SocketChannel>() {
+            ServerBootstrap b = transport.newServerBootstrap();
+            b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeLowMark, writeHighMark));
+            b.childHandler(new ChannelInitializer<SocketChannel>() {
                  @Override
                  protected void initChannel(SocketChannel ch) throws Exception {
                      ChannelPipeline p = ch.pipeline();
+                     p.addLast(heartbeatMonitor);
                      // Binary protocol encoder/decoder
                      p.addLast(new BlynkMessageDecoder());
                      p.addLast(new BlynkMessageEncoder());
                      // Business logic handler
-                     p.addLast(new BlynkProtocolHandler(deviceService, pinService, tokenValidator));
+                     p.addLast(protocolHandler);
                  }
              });
 
-            b.bind(port).sync();
+            serverChannel = b.bind(port).sync().channel();
             log.info("Blynk protocol server started on port {}", port);
         } catch (InterruptedException e) {
             throw e;
@@ -63,8 +91,9 @@ public class BlynkServer {
     }
 
     public void stop() {
-        if (bossGroup != null) bossGroup.shutdownGracefully();
-        if (workerGroup != null) workerGroup.shutdownGracefully();
+        // Event loops are shared and shut down by the owning NettyTransport
+        if (serverChannel != null) serverChannel.close();
+        if (heartbeatMonitor != null) heartbeatMonitor.stop();
         log.info("Blynk protocol server stopped");
     }
 }
@@ -0,0 +1,70 @@
+package cloud.cydc.blynk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Body of GET_GRAPH_DATA_RESPONSE: for every requested pin an int point count followed by
+ * that many (double value, long ts) pairs, all little-endian, and the whole body deflated.
+ * Points are packed into a reused buffer and streamed into the deflater one series at a time.
+ * The native deflater is released by {@link #finish()} or {@link #close()}, whichever comes first.
+ */
+public final class GraphData implements AutoCloseable {
+    public static final int MAX_POINTS = 1000;
+    private static final int POINT_SIZE = 16;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+    // DeflaterOutputStream does not end a Deflater it was given
+    private final Deflater zlib = new Deflater(Deflater.BEST_SPEED);
+    private final DeflaterOutputStream deflater = new DeflaterOutputStream(bytes, zlib);
+    private final ByteBuffer series = ByteBuffer.allocate(4 + MAX_POINTS * POINT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int points;
+    private int totalPoints;
+
+    public void beginSeries() {
+        series.clear();
+        series.putInt(0); // count, filled in by endSeries
+        points = 0;
+    }
+
+    /**
+     * @return false once the series holds {@link #MAX_POINTS}
+     */
+    public boolean add(double value, long ts) {
+        if (points == MAX_POINTS) {
+            return false;
+        }
+        series.putDouble(value).putLong(ts);
+        points++;
+        return true;
+    }
+
+    public void endSeries() throws IOException {
+        series.putInt(0, points);
+        deflater.write(series.array(), 0, series.position());
+        totalPoints += points;
+    }
+
+    public int getTotalPoints() {
+        return totalPoints;
+    }
+
+    public byte[] finish() throws IOException {
+        try {
+            deflater.finish();
+            deflater.close();
+        } finally {
+            zlib.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        zlib.end();
+    }
+}
@@ -0,0 +1,122 @@
+package cloud.cydc.blynk;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parsed HARDWARE body: "vw\0<pin>\0<value>" or "vr\0<pin>"
+ * Fields are scanned straight from the message buffer: the command is a byte tag,
+ * the pin a primitive int, and the value stays a view into the buffer until
+ * {@link #value()} is called. The view is only valid while the message is retained.
+ */
+public final class HardwareCommand {
+    public static final byte UNKNOWN = 0;
+    public static final byte VIRTUAL_WRITE = 'w';
+    public static final byte VIRTUAL_READ = 'r';
+
+    private static final int MAX_PIN_DIGITS = 9;
+
+    private final ByteBuf body;
+    private final byte command;
+    private final int pin;
+    private final int valueIndex;
+    private final int valueLength;
+    private String value;
+
+    private HardwareCommand(ByteBuf body, byte command, int pin, int valueIndex, int valueLength) {
+        this.body = body;
+        this.command = command;
+        this.pin = pin;
+        this.valueIndex = valueIndex;
+        this.valueLength = valueLength;
+    }
+
+    /**
+     * Parse a HARDWARE body without moving its reader index.
+     * Returns null if the body has no pin field or the pin is not a number ("5" or "V5").
+     * Commands other than vw/vr are returned with the {@link #UNKNOWN} tag.
+     */
+    public static HardwareCommand parse(ByteBuf body) {
+        int start = body.readerIndex();
+        int end = body.writerIndex();
+
+        int cmdEnd = body.indexOf(start, end, (byte) 0);
+        if (cmdEnd < 0) return null;
+
+        byte command = UNKNOWN;
+        if (cmdEnd - start == 2 && body.getByte(start) == 'v') {
+            byte op = body.getByte(start + 1);
+            if (op == VIRTUAL_WRITE || op == VIRTUAL_READ) {
+                command = op;
+            }
+        }
+
+        int pinStart = cmdEnd + 1;
+        int pinEnd = body.indexOf(pinStart, end, (byte) 0);
+        if (pinEnd < 0) pinEnd = end;
+        int pin = parsePin(body, pinStart, pinEnd);
+        if (pin < 0) return null;
+
+        int valueIndex = pinEnd + 1;
+        int valueLength = 0;
+        if (valueIndex < end) {
+            int valueEnd = body.indexOf(valueIndex, end, (byte) 0);
+            valueLength = (valueEnd < 0 ? end : valueEnd) - valueIndex;
+        } else {
+            valueIndex = end;
+        }
+
+        return new HardwareCommand(body, command, pin, valueIndex, valueLength);
+    }
+
+    private static int parsePin(ByteBuf body, int from, int to) {
+        if (from < to) {
+            byte first = body.getByte(from);
+            if (first == 'V' || first == 'v') from++;
+        }
+        int digits = to - from;
+        if (digits <= 0 || digits > MAX_PIN_DIGITS) return -1;
+
+        int pin = 0;
+        for (int i = from; i < to; i++) {
+            int d = body.getByte(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            pin = pin * 10 + d;
+        }
+        return pin;
+    }
+
+    public byte command() {
+        return command;
+    }
+
+    public int pin() {
+        return pin;
+    }
+
+    public boolean hasValue() {
+        return valueLength > 0;
+    }
+
+    public int valueLength() {
+        return valueLength;
+    }
+
+    /**
+     * Copy the raw value bytes into another buffer without creating a String.
+     */
+    public void writeValue(ByteBuf out) {
+        out.writeBytes(body, valueIndex, valueLength);
+    }
+
+    /**
+     * Value as a String, decoded on first use.
+     */
+    public String value() {
+        if (value == null) {
+            value = valueLength == 0 ? "" : body.toString(valueIndex, valueLength, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,107 @@
+package cloud.cydc.blynk;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound queue of HARDWARE pin updates for one device connection.
+ * While the channel is writable updates are written immediately and a single flush is
+ * scheduled for everything written in the same event-loop pass. While it is not writable
+ * updates are merged per pin (latest value wins); once more than maxPending pins are waiting
+ * the oldest one is dropped. All state is confined to the channel's event loop.
+ */
+final class HardwareOutbox {
+    static final AttributeKey<HardwareOutbox> KEY = AttributeKey.valueOf("blynk.outbox");
+
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    private final ChannelHandlerContext ctx;
+    private final int maxPending;
+    // pin -> latest value, in order of first arrival
+    private final LinkedHashMap<Integer, String> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    HardwareOutbox(ChannelHandlerContext ctx, int maxPending) {
+        this.ctx = ctx;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Queue a pin update; safe to call from any thread.
+     */
+    void offer(int pin, String value) {
+        if (ctx.executor().inEventLoop()) {
+            enqueue(pin, value);
+        } else {
+            ctx.executor().execute(() -> enqueue(pin, value));
+        }
+    }
+
+    private void enqueue(int pin, String value) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        // Keep order with anything already waiting
+        if (pending.isEmpty() && ctx.channel().isWritable()) {
+            write(pin, value);
+            return;
+        }
+        if (pending.put(pin, value) != null) {
+            coalesced.increment();
+        } else if (pending.size() > maxPending) {
+            Iterator<Integer> oldest = pending.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Write waiting updates while the channel accepts them. Called when writability changes.
+     */
+    void drain() {
+        Iterator<Map.Entry<Integer, String>> it = pending.entrySet().iterator();
+        while (it.hasNext() && ctx.channel().isWritable()) {
+            Map.Entry<Integer, String> e = it.next();
+            it.remove();
+            write(e.getKey(), e.getValue());
+        }
+    }
+
+    private void write(int pin, String value) {
+        BlynkMessage msg = new BlynkMessage(
+            BlynkProtocol.BLYNK_CMD_HARDWARE,
+            1, // message ID (can be any - hardware will not check)
+            BlynkProtocolHandler.virtualWriteBody(ctx.alloc(), pin, value)
+        );
+        ctx.write(msg, ctx.voidPromise());
+        if (!flushScheduled) {
+            flushScheduled = true;
+            // Runs after the tasks already queued on this loop, so a burst shares one flush
+            ctx.executor().execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        ctx.flush();
+    }
+
+    void clear() {
+        pending.clear();
+    }
+
+    static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("coalescedUpdates", coalesced.sum());
+        stats.put("droppedUpdates", dropped.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,123 @@
+package cloud.cydc.blynk;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes device connections that stop sending data.
+ * The allowed silence is the device's advertised heartbeat (INTERNAL "h-beat") times 2.3,
+ * same as the original Blynk server; until the device reports it the default interval applies.
+ * One hashed-wheel timer serves all channels: each channel has a single pending timeout that
+ * re-arms itself for the remaining time instead of being rescheduled on every read.
+ */
+@ChannelHandler.Sharable
+final class HeartbeatMonitor extends ChannelInboundHandlerAdapter {
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatMonitor.class);
+
+    private static final AttributeKey<State> KEY = AttributeKey.valueOf("blynk.heartbeat");
+    private static final double TIMEOUT_FACTOR = 2.3;
+    private static final int MAX_HEARTBEAT_SECONDS = 3600;
+
+    private static final LongAdder evicted = new LongAdder();
+
+    private final HashedWheelTimer timer;
+    private final long defaultTimeoutNanos;
+
+    private final class State implements TimerTask {
+        final Channel channel;
+        volatile long lastReadNanos = System.nanoTime();
+        volatile long timeoutNanos = defaultTimeoutNanos;
+        volatile Timeout timeout;
+
+        State(Channel channel) {
+            this.channel = channel;
+        }
+
+        void schedule(long delayNanos) {
+            timeout = timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run(Timeout t) {
+            if (!channel.isActive()) {
+                return;
+            }
+            long idle = System.nanoTime() - lastReadNanos;
+            long remaining = timeoutNanos - idle;
+            if (remaining > 0) {
+                schedule(remaining);
+                return;
+            }
+            evicted.increment();
+            log.info("[Blynk] No data from {} for {} ms, closing connection",
+                channel.remoteAddress(), TimeUnit.NANOSECONDS.toMillis(idle));
+            channel.close();
+        }
+    }
+
+    HeartbeatMonitor(int defaultHeartbeatSeconds) {
+        this.defaultTimeoutNanos = timeoutFor(defaultHeartbeatSeconds);
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("blynk-heartbeat", true),
+            100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    private static long timeoutFor(int heartbeatSeconds) {
+        return (long) Math.ceil(TimeUnit.SECONDS.toNanos(heartbeatSeconds) * TIMEOUT_FACTOR);
+    }
+
+    /**
+     * Apply the heartbeat interval a device advertised after login.
+     */
+    static void setHeartbeat(Channel channel, int heartbeatSeconds) {
+        State state = channel.attr(KEY).get();
+        if (state != null && heartbeatSeconds > 0 && heartbeatSeconds <= MAX_HEARTBEAT_SECONDS) {
+            state.timeoutNanos = timeoutFor(heartbeatSeconds);
+        }
+    }
+
+    static long getEvictedConnections() {
+        return evicted.sum();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        State state = new State(ctx.channel());
+        ctx.channel().attr(KEY).set(state);
+        state.schedule(state.timeoutNanos);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        State state = ctx.channel().attr(KEY).get();
+        if (state != null) {
+            state.lastReadNanos = System.nanoTime();
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        State state = ctx.channel().attr(KEY).getAndSet(null);
+        if (state != null && state.timeout != null) {
+            state.timeout.cancel();
+        }
+        super.channelInactive(ctx);
+    }
+
+    void stop() {
+        timer.stop();
+    }
+}
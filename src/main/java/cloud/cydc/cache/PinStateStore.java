@@ -0,0 +1,649 @@
+package cloud.cydc.cache;
+
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.netty.util.collection.LongObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process pin table: one fixed slot array per device, held in striped primitive-long maps.
+ * Reads and writes are served from memory. Changed pins are marked in a per-device dirty bitmap
+ * and written to Redis in pipelined batches by {@link #flush()}. Last-seen times go into the
+ * "device:activity" sorted set (member = device ID, score = epoch ms), so finding idle devices
+ * is a range query instead of a keyspace scan.
+ * Two Redis layouts are supported: {@link Layout#KEYS}, one "pin:<dev>:V<n>" string key per pin, and
+ * {@link Layout#HASH}, one "pins:<dev>" hash per device (field "V<n>") with a single TTL. A device not
+ * yet in memory is loaded with one MGET / HGETALL on first read; in hash mode a device still stored
+ * under the old per-pin keys is moved into its hash at that point.
+ * Writers get a future for the flush that will carry their change, completed when Redis has
+ * acknowledged the whole batch.
+ * This node is assumed to be the only writer of pin state.
+ */
+public final class PinStateStore {
+    private static final Logger log = LoggerFactory.getLogger(PinStateStore.class);
+
+    public static final int MAX_PINS = 128;
+    public static final String PIN_KEY_PREFIX = "pin:";
+    public static final String PIN_HASH_PREFIX = "pins:";
+    public static final String ACTIVITY_INDEX_KEY = "device:activity";
+
+    private static final int STRIPES = 64;
+    private static final long ACTIVITY_WRITE_INTERVAL_MS = 1000;
+    private static final long FLUSH_TIMEOUT_SEC = 5;
+
+    public enum Layout { KEYS, HASH }
+
+    private final Layout layout;
+    private final LongAdder migratedDevices = new LongAdder();
+    // Set once migrateAll has moved every old per-pin key
+    private volatile boolean legacyMigrated;
+    // Non-null pin values currently held in memory
+    private final LongAdder storedPins = new LongAdder();
+
+    private final LongObjectHashMap<DeviceSlots>[] stripes;
+    private final ConcurrentLinkedQueue<DeviceSlots> dirtyDevices = new ConcurrentLinkedQueue<>();
+    private final long activeTtlSec;
+    private final long inactiveTtlSec;
+    private final long inactiveThresholdMs;
+    private final LongAdder redisLoads = new LongAdder();
+    private final LongAdder flushedKeys = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+    // Completed by the next flush; replaced at the start of each flush
+    private volatile CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+
+    private static final class DeviceSlots {
+        final long devId;
+        final AtomicReferenceArray<String> values = new AtomicReferenceArray<>(MAX_PINS);
+        // One bit per pin changed since the last flush
+        final AtomicLongArray dirty = new AtomicLongArray(MAX_PINS / 64);
+        final AtomicBoolean queued = new AtomicBoolean();
+        volatile boolean loaded;
+        volatile boolean removed;
+        volatile long lastSeen;
+        volatile long activityWritten;
+
+        DeviceSlots(long devId) {
+            this.devId = devId;
+        }
+
+        void markDirty(int pin) {
+            int word = pin >>> 6;
+            long bit = 1L << (pin & 63);
+            long prev;
+            do {
+                prev = dirty.get(word);
+            } while ((prev & bit) == 0 && !dirty.compareAndSet(word, prev, prev | bit));
+        }
+    }
+
+    public PinStateStore(long activeTtlSec, long inactiveTtlSec, long inactiveThresholdMs) {
+        this(Layout.KEYS, activeTtlSec, inactiveTtlSec, inactiveThresholdMs);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PinStateStore(Layout layout, long activeTtlSec, long inactiveTtlSec, long inactiveThresholdMs) {
+        this.layout = layout;
+        this.activeTtlSec = activeTtlSec;
+        this.inactiveTtlSec = inactiveTtlSec;
+        this.inactiveThresholdMs = inactiveThresholdMs;
+        this.stripes = new LongObjectHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongObjectHashMap<>();
+        }
+    }
+
+    private LongObjectHashMap<DeviceSlots> stripe(long devId) {
+        long h = devId * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58)];
+    }
+
+    private DeviceSlots find(long devId) {
+        LongObjectHashMap<DeviceSlots> map = stripe(devId);
+        synchronized (map) {
+            return map.get(devId);
+        }
+    }
+
+    private DeviceSlots getOrCreate(long devId) {
+        LongObjectHashMap<DeviceSlots> map = stripe(devId);
+        synchronized (map) {
+            DeviceSlots slots = map.get(devId);
+            if (slots == null) {
+                slots = new DeviceSlots(devId);
+                map.put(devId, slots);
+            }
+            return slots;
+        }
+    }
+
+    /**
+     * Load values stored in Redis by a previous run; values written locally meanwhile win.
+     */
+    private DeviceSlots loaded(long devId) {
+        DeviceSlots slots = getOrCreate(devId);
+        if (!slots.loaded) {
+            synchronized (slots) {
+                if (!slots.loaded) {
+                    String[] stored = layout == Layout.HASH ? loadHash(devId) : loadKeys(devId);
+                    for (int i = 0; i < MAX_PINS; i++) {
+                        if (stored[i] != null) {
+                            if (slots.values.compareAndSet(i, null, stored[i])) {
+                                storedPins.increment();
+                            }
+                        }
+                    }
+                    redisLoads.increment();
+                    slots.loaded = true;
+                }
+            }
+        }
+        return slots;
+    }
+
+    private static String[] loadKeys(long devId) {
+        String[] values = new String[MAX_PINS];
+        List<KeyValue<String, String>> result = RedisClientManager.sync().mget(legacyKeys(devId));
+        for (int i = 0; i < result.size() && i < MAX_PINS; i++) {
+            KeyValue<String, String> kv = result.get(i);
+            if (kv.hasValue()) {
+                values[i] = kv.getValue();
+            }
+        }
+        return values;
+    }
+
+    private String[] loadHash(long devId) {
+        String[] values = new String[MAX_PINS];
+        Map<String, String> hash = RedisClientManager.sync().hgetall(pinHashKey(devId));
+        for (Map.Entry<String, String> e : hash.entrySet()) {
+            int pin = fieldPin(e.getKey());
+            if (pin >= 0) {
+                values[pin] = e.getValue();
+            }
+        }
+        if (!legacyMigrated) {
+            // Old keys can exist next to the hash: a write before the first read creates the hash
+            migrateDevice(devId, values);
+        }
+        return values;
+    }
+
+    /**
+     * Move a device's old per-pin keys into its hash, keeping the longest remaining TTL.
+     * Fields already in the hash were written later and win (HSETNX); pins missing from values
+     * are filled with the old ones.
+     */
+    private void migrateDevice(long devId, String[] values) {
+        RedisCommands<String, String> sync = RedisClientManager.sync();
+        String[] legacy = loadKeys(devId);
+        String hashKey = pinHashKey(devId);
+        long ttl = -1;
+        int moved = 0;
+        for (int i = 0; i < MAX_PINS; i++) {
+            if (legacy[i] != null) {
+                ttl = Math.max(ttl, sync.ttl(pinKey(devId, i)));
+                sync.hsetnx(hashKey, pinField(i), legacy[i]);
+                if (values[i] == null) {
+                    values[i] = legacy[i];
+                }
+                moved++;
+            }
+        }
+        if (moved == 0) {
+            return;
+        }
+        ttl = Math.max(ttl, sync.ttl(hashKey));
+        sync.expire(hashKey, ttl > 0 ? ttl : activeTtlSec);
+        sync.del(legacyKeys(devId));
+        migratedDevices.increment();
+        log.info("Migrated {} pin keys of device {} into {}", moved, devId, hashKey);
+    }
+
+    /**
+     * Move every device still stored under per-pin keys into the hash layout.
+     * Walks the keyspace with SCAN, so it can run while the server is live.
+     * @return number of devices migrated
+     */
+    public int migrateAll() {
+        if (layout != Layout.HASH) {
+            return 0;
+        }
+        RedisCommands<String, String> sync = RedisClientManager.sync();
+        ScanArgs args = ScanArgs.Builder.matches(PIN_KEY_PREFIX + "*").limit(1000);
+        Set<Long> devices = new HashSet<>();
+        KeyScanCursor<String> cursor = sync.scan(args);
+        while (true) {
+            for (String key : cursor.getKeys()) {
+                int sep = key.indexOf(':', PIN_KEY_PREFIX.length());
+                if (sep > 0) {
+                    try {
+                        devices.add(Long.parseLong(key.substring(PIN_KEY_PREFIX.length(), sep)));
+                    } catch (NumberFormatException ignored) {
+                        // not a pin key
+                    }
+                }
+            }
+            if (cursor.isFinished()) {
+                break;
+            }
+            cursor = sync.scan(cursor, args);
+        }
+
+        int migrated = 0;
+        for (long devId : devices) {
+            // Redis only: devices already in memory keep their values, the others load the hash later
+            migrateDevice(devId, new String[MAX_PINS]);
+            migrated++;
+        }
+        // Nothing writes old keys any more, so loads can skip looking for them
+        legacyMigrated = true;
+        log.info("Pin key migration finished: {} devices moved to the hash layout", migrated);
+        return migrated;
+    }
+
+    /**
+     * Delete a device's pins from Redis (both layouts) with a single DEL.
+     */
+    public void deleteFromRedis(long devId) {
+        String[] keys = Arrays.copyOf(legacyKeys(devId), MAX_PINS + 1);
+        keys[MAX_PINS] = pinHashKey(devId);
+        RedisClientManager.sync().del(keys);
+    }
+
+    private static String[] legacyKeys(long devId) {
+        String[] keys = new String[MAX_PINS];
+        for (int i = 0; i < MAX_PINS; i++) {
+            keys[i] = pinKey(devId, i);
+        }
+        return keys;
+    }
+
+    public static String pinKey(long devId, int pin) {
+        return PIN_KEY_PREFIX + devId + ":V" + pin;
+    }
+
+    public static String pinHashKey(long devId) {
+        return PIN_HASH_PREFIX + devId;
+    }
+
+    private static String pinField(int pin) {
+        return "V" + pin;
+    }
+
+    private static int fieldPin(String field) {
+        if (field.length() < 2 || field.length() > 4 || field.charAt(0) != 'V') {
+            return -1;
+        }
+        try {
+            int pin = Integer.parseInt(field, 1, field.length(), 10);
+            return pin < MAX_PINS ? pin : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String get(long devId, int pin) {
+        return loaded(devId).values.get(pin);
+    }
+
+    /**
+     * Snapshot of all pins, indexed by pin number (null = no value)
+     */
+    public String[] getAll(long devId) {
+        DeviceSlots slots = loaded(devId);
+        String[] values = new String[MAX_PINS];
+        for (int i = 0; i < MAX_PINS; i++) {
+            values[i] = slots.values.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * Fill a pin that has no value with one recovered elsewhere (e.g. the database).
+     * Kept in memory only; a value written meanwhile wins.
+     */
+    public void fillIfAbsent(long devId, int pin, String value) {
+        if (loaded(devId).values.compareAndSet(pin, null, value)) {
+            storedPins.increment();
+        }
+    }
+
+    /**
+     * @return completes once the change has been written to Redis
+     */
+    public CompletableFuture<Void> set(long devId, int pin, String value) {
+        DeviceSlots slots = getOrCreate(devId);
+        if (slots.values.getAndSet(pin, value) == null) {
+            storedPins.increment();
+        }
+        slots.markDirty(pin);
+        enqueue(slots);
+        // Read after marking: a flush swaps the future before collecting dirty bits
+        return nextFlush;
+    }
+
+    /**
+     * Clear one pin; the key is deleted from Redis on the next flush.
+     */
+    public void remove(long devId, int pin) {
+        DeviceSlots slots = getOrCreate(devId);
+        if (slots.values.getAndSet(pin, null) != null) {
+            storedPins.decrement();
+        }
+        slots.markDirty(pin);
+        enqueue(slots);
+    }
+
+    /**
+     * Drop a device from memory; pending changes for it are discarded.
+     */
+    public void removeDevice(long devId) {
+        LongObjectHashMap<DeviceSlots> map = stripe(devId);
+        DeviceSlots slots;
+        synchronized (map) {
+            slots = map.remove(devId);
+        }
+        if (slots != null) {
+            slots.removed = true;
+            forget(slots);
+        }
+    }
+
+    private void forget(DeviceSlots slots) {
+        int count = 0;
+        for (int i = 0; i < MAX_PINS; i++) {
+            if (slots.values.get(i) != null) {
+                count++;
+            }
+        }
+        storedPins.add(-count);
+    }
+
+    public void touch(long devId) {
+        DeviceSlots slots = getOrCreate(devId);
+        long now = System.currentTimeMillis();
+        slots.lastSeen = now;
+        if (now - slots.activityWritten >= ACTIVITY_WRITE_INTERVAL_MS) {
+            enqueue(slots);
+        }
+    }
+
+    public boolean isActive(long devId) {
+        DeviceSlots slots = find(devId);
+        return slots != null && System.currentTimeMillis() - slots.lastSeen < inactiveThresholdMs;
+    }
+
+    /**
+     * Last activity seen by this node, 0 if the device is not in memory
+     */
+    public long getLastSeen(long devId) {
+        DeviceSlots slots = find(devId);
+        return slots != null ? slots.lastSeen : 0;
+    }
+
+    private void enqueue(DeviceSlots slots) {
+        if (slots.queued.compareAndSet(false, true)) {
+            dirtyDevices.offer(slots);
+        }
+    }
+
+    /**
+     * Write every changed pin (and due activity timestamps) to Redis as one pipelined batch:
+     * all commands are queued on the manual-flush connection and sent with a single flush.
+     * Called from a single thread. Changes that fail to write are retried next time, but the
+     * futures handed out for this batch fail.
+     * @return number of keys written
+     */
+    public int flush() {
+        // Always swap, even with nothing queued: a writer whose bit was taken by the previous flush
+        // may hold this future, and its change is already in Redis
+        CompletableFuture<Void> done = nextFlush;
+        nextFlush = new CompletableFuture<>();
+        if (dirtyDevices.isEmpty()) {
+            done.complete(null);
+            return 0;
+        }
+
+        List<DeviceSlots> batch = new ArrayList<>();
+        DeviceSlots slots;
+        while ((slots = dirtyDevices.poll()) != null) {
+            // Clear first so writes arriving during the flush queue the device again
+            slots.queued.set(false);
+            if (!slots.removed) {
+                batch.add(slots);
+            }
+        }
+        if (batch.isEmpty()) {
+            done.complete(null);
+            return 0;
+        }
+
+        RedisAsyncCommands<String, String> async = RedisClientManager.pipeline();
+        List<RedisFuture<?>> futures = new ArrayList<>();
+        List<long[]> taken = new ArrayList<>(batch.size());
+        long now = System.currentTimeMillis();
+        List<ScoredValue<String>> activity = new ArrayList<>();
+        for (DeviceSlots s : batch) {
+            long[] bits = new long[s.dirty.length()];
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] = s.dirty.getAndSet(w, 0L);
+            }
+            taken.add(bits);
+
+            long ttl = now - s.lastSeen < inactiveThresholdMs ? activeTtlSec : inactiveTtlSec;
+            if (layout == Layout.HASH) {
+                writeHash(async, s, bits, ttl, futures);
+            } else {
+                writeKeys(async, s, bits, ttl, futures);
+            }
+            if (s.lastSeen > s.activityWritten) {
+                activity.add(ScoredValue.just(s.lastSeen, String.valueOf(s.devId)));
+                s.activityWritten = now;
+            }
+        }
+        if (!activity.isEmpty()) {
+            // One ZADD for every device seen since the last flush
+            futures.add(async.zadd(ACTIVITY_INDEX_KEY, toArray(activity)));
+        }
+
+        RedisClientManager.flushPipeline();
+
+        boolean ok;
+        Exception failure = null;
+        try {
+            ok = LettuceFutures.awaitAll(FLUSH_TIMEOUT_SEC, TimeUnit.SECONDS, futures.toArray(new RedisFuture<?>[0]));
+        } catch (Exception e) {
+            log.error("Pin state flush failed: {}", e.getMessage());
+            failure = e;
+            ok = false;
+        }
+        if (!ok) {
+            // Put the bits back; values are re-read from the slots on the next flush
+            flushFailures.increment();
+            for (int i = 0; i < batch.size(); i++) {
+                DeviceSlots s = batch.get(i);
+                long[] bits = taken.get(i);
+                for (int w = 0; w < bits.length; w++) {
+                    if (bits[w] != 0) {
+                        long prev;
+                        do {
+                            prev = s.dirty.get(w);
+                        } while (!s.dirty.compareAndSet(w, prev, prev | bits[w]));
+                    }
+                }
+                s.activityWritten = 0;
+                enqueue(s);
+            }
+            done.completeExceptionally(failure != null ? failure : new IllegalStateException("Pin state flush timed out"));
+            return 0;
+        }
+        done.complete(null);
+        flushedKeys.add(futures.size());
+        return futures.size();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ScoredValue<String>[] toArray(List<ScoredValue<String>> values) {
+        return values.toArray(new ScoredValue[0]);
+    }
+
+    private static void writeKeys(RedisAsyncCommands<String, String> async, DeviceSlots s, long[] bits, long ttl,
+                                  List<RedisFuture<?>> futures) {
+        SetArgs pinArgs = SetArgs.Builder.ex(ttl);
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                int pin = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                String value = s.values.get(pin);
+                if (value != null) {
+                    futures.add(async.set(pinKey(s.devId, pin), value, pinArgs));
+                } else {
+                    futures.add(async.del(pinKey(s.devId, pin)));
+                }
+            }
+        }
+    }
+
+    /**
+     * One HSET for all changed pins, one HDEL for cleared ones, one EXPIRE for the device
+     */
+    private static void writeHash(RedisAsyncCommands<String, String> async, DeviceSlots s, long[] bits, long ttl,
+                                  List<RedisFuture<?>> futures) {
+        Map<String, String> changed = new HashMap<>();
+        List<String> cleared = new ArrayList<>();
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                int pin = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                String value = s.values.get(pin);
+                if (value != null) {
+                    changed.put(pinField(pin), value);
+                } else {
+                    cleared.add(pinField(pin));
+                }
+            }
+        }
+        String hashKey = pinHashKey(s.devId);
+        if (!changed.isEmpty()) {
+            futures.add(async.hset(hashKey, changed));
+        }
+        if (!cleared.isEmpty()) {
+            futures.add(async.hdel(hashKey, cleared.toArray(new String[0])));
+        }
+        if (!changed.isEmpty() || !cleared.isEmpty()) {
+            futures.add(async.expire(hashKey, ttl));
+        }
+    }
+
+    /**
+     * Forget devices not seen for idleMs that have nothing left to flush; they are reloaded on demand.
+     * @return the evicted device IDs
+     */
+    public List<Long> evictIdle(long idleMs) {
+        long cutoff = System.currentTimeMillis() - idleMs;
+        List<Long> evicted = new ArrayList<>();
+        for (LongObjectHashMap<DeviceSlots> map : stripes) {
+            synchronized (map) {
+                map.values().removeIf(s -> {
+                    if (s.lastSeen >= cutoff || s.queued.get()) {
+                        return false;
+                    }
+                    evicted.add(s.devId);
+                    forget(s);
+                    return true;
+                });
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Devices whose last activity is older than cutoffMs, oldest first, at most limit of them
+     */
+    public List<Long> findInactive(long cutoffMs, int limit) {
+        List<String> members = RedisClientManager.sync().zrangebyscore(ACTIVITY_INDEX_KEY,
+            Range.create(Double.NEGATIVE_INFINITY, (double) cutoffMs), Limit.create(0, limit));
+        List<Long> devices = new ArrayList<>(members.size());
+        for (String m : members) {
+            try {
+                devices.add(Long.parseLong(m));
+            } catch (NumberFormatException ignored) {
+                // not a device ID
+            }
+        }
+        return devices;
+    }
+
+    public void removeActivity(List<Long> devIds) {
+        if (devIds.isEmpty()) {
+            return;
+        }
+        String[] members = new String[devIds.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = String.valueOf(devIds.get(i));
+        }
+        RedisClientManager.sync().zrem(ACTIVITY_INDEX_KEY, members);
+    }
+
+    /**
+     * Devices seen since sinceMs (ZCOUNT on the activity index)
+     */
+    public long countActiveSince(long sinceMs) {
+        return RedisClientManager.sync().zcount(ACTIVITY_INDEX_KEY,
+            Range.create((double) sinceMs, Double.POSITIVE_INFINITY));
+    }
+
+    public long trackedDevices() {
+        return RedisClientManager.sync().zcard(ACTIVITY_INDEX_KEY);
+    }
+
+    public int size() {
+        int total = 0;
+        for (LongObjectHashMap<DeviceSlots> map : stripes) {
+            synchronized (map) {
+                total += map.size();
+            }
+        }
+        return total;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("devicesInMemory", size());
+        stats.put("dirtyDevices", dirtyDevices.size());
+        stats.put("pinsInMemory", storedPins.sum());
+        stats.put("redisLoads", redisLoads.sum());
+        stats.put("flushedKeys", flushedKeys.sum());
+        stats.put("flushFailures", flushFailures.sum());
+        stats.put("layout", layout.name());
+        stats.put("migratedDevices", migratedDevices.sum());
+        return stats;
+    }
+}
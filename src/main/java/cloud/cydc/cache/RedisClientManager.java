@@ -3,23 +3,41 @@ package cloud.cydc.cache;
 import cloud.cydc.config.Config;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 
 public final class RedisClientManager {
     private static RedisClient client;
     private static StatefulRedisConnection<String, String> conn;
+    // Separate connection with manual flushing, used only by the pin-flush thread
+    private static StatefulRedisConnection<String, String> pipelineConn;
 
     public static void init(Config cfg) {
         String uri = cfg.get("redis.uri", "redis://localhost:6379");
         client = RedisClient.create(uri);
         conn = client.connect();
+        pipelineConn = client.connect();
+        pipelineConn.setAutoFlushCommands(false);
     }
 
     public static RedisCommands<String, String> sync() {
         return conn.sync();
     }
 
+    /**
+     * Commands on this connection are buffered until {@link #flushPipeline()}.
+     * Not for shared use: a single writer thread owns it.
+     */
+    public static RedisAsyncCommands<String, String> pipeline() {
+        return pipelineConn.async();
+    }
+
+    public static void flushPipeline() {
+        pipelineConn.flushCommands();
+    }
+
     public static void close() {
+        if (pipelineConn != null) pipelineConn.close();
         if (conn != null) conn.close();
         if (client != null) client.shutdown();
     }
@@ -1,45 +1,417 @@
 package cloud.cydc.db;
 
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.model.RollupBucket;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.postgresql.PGConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class RawDataDao {
     private static final Logger log = LoggerFactory.getLogger(RawDataDao.class);
     private final DataSource ds;
+    private final RawDataStore store;
+    // v2 schema (rawdata.schema=v2): devkey/pin smallint/num columns instead of userid/dashid/devid/pin text
+    private volatile Boolean typed;
+    private final Map<String, Integer> devKeys = new ConcurrentHashMap<>();
     private final ObjectMapper mapper = new ObjectMapper();
+    private static final String PARTITION_PREFIX = "raw_data_p";
+    private static final DateTimeFormatter PARTITION_DAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /**
+     * Receives rows from {@link #streamData}; throwing stops the query.
+     */
+    public interface RowHandler {
+        void accept(long id, long ts, String value) throws IOException;
+    }
+
+    /**
+     * Receives rollup rows from {@link #streamRollups}.
+     */
+    public interface RollupHandler {
+        void accept(long bucket, double min, double max, double sum, long count) throws IOException;
+    }
 
     public RawDataDao(DataSource ds) {
+        this(ds, null);
+    }
+
+    /**
+     * store = where numeric samples go instead of raw_data rows (null = raw_data only).
+     * pin_latest and the rollups stay in Postgres either way.
+     */
+    public RawDataDao(DataSource ds, RawDataStore store) {
         this.ds = ds;
+        this.store = store;
+    }
+
+    public RawDataStore getStore() {
+        return store;
     }
 
     /**
      * Insert raw data point: userId, dashId, devId, pin, value, timestamp.
+     * pin_latest is updated in the same transaction.
      */
     public void insert(String userId, long dashId, long devId, String pin, String value, long ts) {
+        insertBatch(List.of(new RawDataPoint(userId, dashId, devId, pin, value, ts)), false);
+    }
+
+    /**
+     * Insert many raw data points in one transaction.
+     * useCopy = stream the rows with COPY FROM STDIN, otherwise one JDBC batch of INSERTs.
+     * Nothing is stored if any row fails.
+     */
+    public void insertBatch(List<RawDataPoint> points, boolean useCopy) {
+        insertBatch(points, useCopy, List.of());
+    }
+
+    /**
+     * Same as {@link #insertBatch(List, boolean)}, also merging the given rollup buckets in the same transaction.
+     */
+    public void insertBatch(List<RawDataPoint> points, boolean useCopy, List<RollupBucket> rollups) {
+        if (points.isEmpty() && rollups.isEmpty()) return;
+
+        // With a sample store, only the values it cannot hold become raw_data rows.
+        // The store is written after the commit, so a failed transaction can be retried as is.
+        List<RawDataPoint> rows = points;
+        List<RawDataPoint> samples = List.of();
+        if (store != null) {
+            rows = new ArrayList<>();
+            samples = new ArrayList<>();
+            for (RawDataPoint p : points) {
+                (store.accepts(p) ? samples : rows).add(p);
+            }
+        }
+
+        if (!rows.isEmpty() && isTyped()) {
+            // Outside the batch transaction, so a rollback never leaves a cached key without its row
+            resolveDevKeys(rows);
+        }
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                if (!rows.isEmpty()) {
+                    if (useCopy) {
+                        copyIn(c, rows);
+                    } else {
+                        batchInsert(c, rows);
+                    }
+                }
+                if (!points.isEmpty()) {
+                    upsertLatest(c, points);
+                }
+                if (!rollups.isEmpty()) {
+                    upsertRollups(c, rollups);
+                }
+                c.commit();
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.error("Error inserting batch of {} raw data rows", points.size(), e);
+            throw new RuntimeException(e);
+        }
+
+        if (!samples.isEmpty()) {
+            appendToStore(samples);
+        }
+    }
+
+    /**
+     * Runs after the batch committed, so nothing here may fail the batch: a retry would insert the
+     * committed rows and merge the rollups a second time. Errors are logged and absorbed.
+     */
+    private void appendToStore(List<RawDataPoint> samples) {
+        // Only what the store did not take (including the samples after a failed write) becomes raw_data rows
+        List<RawDataPoint> leftover = store.append(samples);
+        if (!leftover.isEmpty()) {
+            try (Connection c = ds.getConnection()) {
+                if (isTyped()) {
+                    resolveDevKeys(leftover);
+                }
+                batchInsert(c, leftover);
+            } catch (SQLException | RuntimeException e) {
+                log.error("Lost {} raw data rows the sample store did not take", leftover.size(), e);
+            }
+        }
+    }
+
+    private void batchInsert(Connection c, List<RawDataPoint> points) throws SQLException {
+        if (isTyped()) {
+            batchInsertTyped(c, points);
+            return;
+        }
         String sql = "INSERT INTO raw_data (userid, dashid, devid, pin, value, ts) VALUES (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (RawDataPoint p : points) {
+                ps.setString(1, p.getUserId());
+                ps.setLong(2, p.getDashId());
+                ps.setLong(3, p.getDevId());
+                ps.setString(4, p.getPin());
+                ps.setString(5, p.getValue());
+                ps.setLong(6, p.getTs());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * v2 rows: numbers go to num; value keeps the text only when it is not a number or would not read back the same.
+     */
+    private void batchInsertTyped(Connection c, List<RawDataPoint> points) throws SQLException {
+        String sql = "INSERT INTO raw_data (devkey, pin, ts, num, value) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (RawDataPoint p : points) {
+                double num = p.numericValue();
+                ps.setInt(1, devKeys.get(devKeyOf(p.getUserId(), p.getDashId(), p.getDevId())));
+                ps.setShort(2, pinNumber(p.getPin()));
+                ps.setLong(3, p.getTs());
+                if (Double.isNaN(num)) {
+                    ps.setNull(4, Types.DOUBLE);
+                    ps.setString(5, p.getValue());
+                } else {
+                    ps.setDouble(4, num);
+                    ps.setString(5, p.isCanonicalNumber() ? null : p.getValue());
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Make sure every device of the batch has a raw_device key (cached after the first lookup).
+     */
+    private void resolveDevKeys(List<RawDataPoint> points) {
+        String sql = "INSERT INTO raw_device (userid, dashid, devid) VALUES (?, ?, ?) " +
+                     "ON CONFLICT (userid, dashid, devid) DO UPDATE SET devid = EXCLUDED.devid RETURNING devkey";
         try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+            for (RawDataPoint p : points) {
+                String key = devKeyOf(p.getUserId(), p.getDashId(), p.getDevId());
+                if (devKeys.containsKey(key)) continue;
+                ps.setString(1, p.getUserId());
+                ps.setLong(2, p.getDashId());
+                ps.setLong(3, p.getDevId());
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    devKeys.put(key, rs.getInt(1));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error resolving raw_device keys", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * raw_device key of a device, or null if it never wrote raw_data.
+     */
+    private Integer findDevKey(Connection c, String userId, long dashId, long devId) throws SQLException {
+        String key = devKeyOf(userId, dashId, devId);
+        Integer devKey = devKeys.get(key);
+        if (devKey != null) return devKey;
+        String sql = "SELECT devkey FROM raw_device WHERE userid = ? AND dashid = ? AND devid = ?";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setString(1, userId);
             ps.setLong(2, dashId);
             ps.setLong(3, devId);
-            ps.setString(4, pin);
-            ps.setString(5, value);
-            ps.setLong(6, ts);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Error inserting raw data", e);
-            throw new RuntimeException(e);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                devKey = rs.getInt(1);
+            }
+        }
+        devKeys.put(key, devKey);
+        return devKey;
+    }
+
+    private static String devKeyOf(String userId, long dashId, long devId) {
+        return userId + ":" + dashId + ":" + devId;
+    }
+
+    /**
+     * v2 stores the virtual pin number ("V5" -> 5).
+     */
+    private static short pinNumber(String pin) {
+        if (pin == null || pin.length() < 2 || pin.charAt(0) != 'V') {
+            throw new IllegalArgumentException("raw_data v2 only stores virtual pins: " + pin);
+        }
+        return Short.parseShort(pin.substring(1));
+    }
+
+    /**
+     * Columns that select one device pin, bound by {@link #bindSeries}.
+     */
+    private String seriesFilter() {
+        return isTyped() ? "devkey = ? AND pin = ?" : "userid = ? AND dashid = ? AND devid = ? AND pin = ?";
+    }
+
+    /**
+     * Bind the series filter from parameter 1.
+     * @return the next parameter index, or -1 if the device has no rows (v2)
+     */
+    private int bindSeries(Connection c, PreparedStatement ps, String userId, long dashId, long devId, String pin)
+            throws SQLException {
+        if (isTyped()) {
+            Integer devKey = findDevKey(c, userId, dashId, devId);
+            if (devKey == null) return -1;
+            ps.setInt(1, devKey);
+            ps.setShort(2, pinNumber(pin));
+            return 3;
+        }
+        ps.setString(1, userId);
+        ps.setLong(2, dashId);
+        ps.setLong(3, devId);
+        ps.setString(4, pin);
+        return 5;
+    }
+
+    private String valueColumns() {
+        return isTyped() ? "value, num" : "value";
+    }
+
+    /**
+     * Read the value selected by {@link #valueColumns} starting at col.
+     */
+    private String readValue(ResultSet rs, int col) throws SQLException {
+        String value = rs.getString(col);
+        if (value == null && isTyped()) {
+            value = RawDataPoint.formatNumber(rs.getDouble(col + 1));
+        }
+        return value;
+    }
+
+    /**
+     * Keep the newest value per device/pin in pin_latest (one row each, primary key lookup).
+     */
+    private void upsertLatest(Connection c, List<RawDataPoint> points) throws SQLException {
+        // Chỉ giữ giá trị mới nhất của mỗi pin trong batch
+        Map<String, RawDataPoint> latest = new HashMap<>();
+        for (RawDataPoint p : points) {
+            latest.merge(p.getDevId() + ":" + p.getPin(), p, (a, b) -> b.getTs() >= a.getTs() ? b : a);
+        }
+        String sql = "INSERT INTO pin_latest (devid, pin, userid, dashid, value, ts) VALUES (?, ?, ?, ?, ?, ?) " +
+                     "ON CONFLICT (devid, pin) DO UPDATE SET userid = EXCLUDED.userid, dashid = EXCLUDED.dashid, " +
+                     "value = EXCLUDED.value, ts = EXCLUDED.ts WHERE pin_latest.ts <= EXCLUDED.ts";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (RawDataPoint p : latest.values()) {
+                ps.setLong(1, p.getDevId());
+                ps.setString(2, p.getPin());
+                ps.setString(3, p.getUserId());
+                ps.setLong(4, p.getDashId());
+                ps.setString(5, p.getValue());
+                ps.setLong(6, p.getTs());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void upsertRollups(Connection c, List<RollupBucket> rollups) throws SQLException {
+        // Một bucket có thể được ghi nhiều lần (row đến trễ): cộng dồn thay vì ghi đè
+        String sql = "INSERT INTO raw_data_rollup (devid, pin, resolution, bucket, userid, dashid, min, max, sum, count) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                     "ON CONFLICT (devid, pin, resolution, bucket) DO UPDATE SET " +
+                     "min = LEAST(raw_data_rollup.min, EXCLUDED.min), max = GREATEST(raw_data_rollup.max, EXCLUDED.max), " +
+                     "sum = raw_data_rollup.sum + EXCLUDED.sum, count = raw_data_rollup.count + EXCLUDED.count";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (RollupBucket b : rollups) {
+                ps.setLong(1, b.getDevId());
+                ps.setString(2, b.getPin());
+                ps.setInt(3, b.getResolution());
+                ps.setLong(4, b.getBucket());
+                ps.setString(5, b.getUserId());
+                ps.setLong(6, b.getDashId());
+                ps.setDouble(7, b.getMin());
+                ps.setDouble(8, b.getMax());
+                ps.setDouble(9, b.getSum());
+                ps.setLong(10, b.getCount());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void copyIn(Connection c, List<RawDataPoint> points) throws SQLException {
+        if (isTyped()) {
+            copyInTyped(c, points);
+            return;
+        }
+        StringBuilder csv = new StringBuilder(points.size() * 64);
+        for (RawDataPoint p : points) {
+            appendCsv(csv, p.getUserId()).append(',')
+                .append(p.getDashId()).append(',')
+                .append(p.getDevId()).append(',');
+            appendCsv(csv, p.getPin()).append(',');
+            appendCsv(csv, p.getValue()).append(',')
+                .append(p.getTs()).append('\n');
+        }
+        try {
+            c.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                "COPY raw_data (userid, dashid, devid, pin, value, ts) FROM STDIN WITH (FORMAT csv)",
+                new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into raw_data failed", e);
+        }
+    }
+
+    private void copyInTyped(Connection c, List<RawDataPoint> points) throws SQLException {
+        StringBuilder csv = new StringBuilder(points.size() * 40);
+        for (RawDataPoint p : points) {
+            double num = p.numericValue();
+            csv.append(devKeys.get(devKeyOf(p.getUserId(), p.getDashId(), p.getDevId()))).append(',')
+                .append(pinNumber(p.getPin())).append(',')
+                .append(p.getTs()).append(',');
+            // An unquoted empty field is NULL
+            if (!Double.isNaN(num)) csv.append(num);
+            csv.append(',');
+            if (Double.isNaN(num) || !p.isCanonicalNumber()) appendCsv(csv, p.getValue());
+            csv.append('\n');
+        }
+        try {
+            c.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                "COPY raw_data (devkey, pin, ts, num, value) FROM STDIN WITH (FORMAT csv)",
+                new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into raw_data failed", e);
+        }
+    }
+
+    private static StringBuilder appendCsv(StringBuilder sb, String field) {
+        // Always quoted, so an empty value stays '' instead of NULL
+        sb.append('"');
+        String s = field != null ? field : "";
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"') sb.append('"');
+            sb.append(ch);
         }
+        return sb.append('"');
     }
 
     /**
@@ -47,26 +419,26 @@ public class RawDataDao {
      * Returns JSON array of [value, timestamp, pin] objects.
      */
     public String queryData(String userId, long dashId, long devId, String pin, long startTs, long endTs) {
-        String sql = "SELECT value, ts FROM raw_data WHERE userid = ? AND dashid = ? AND devid = ? AND pin = ? AND ts >= ? AND ts <= ? ORDER BY ts DESC";
+        String sql = "SELECT ts, " + valueColumns() + " FROM raw_data WHERE " + seriesFilter() +
+                     " AND ts >= ? AND ts <= ? ORDER BY ts DESC";
         List<Map<String, Object>> data = new ArrayList<>();
 
         try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            ps.setLong(2, dashId);
-            ps.setLong(3, devId);
-            ps.setString(4, pin);
-            ps.setLong(5, startTs);
-            ps.setLong(6, endTs);
+            int i = bindSeries(c, ps, userId, dashId, devId, pin);
+            if (i > 0) {
+                ps.setLong(i, startTs);
+                ps.setLong(i + 1, endTs);
 
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                Map<String, Object> row = new HashMap<>();
-                row.put("value", rs.getString("value"));
-                row.put("ts", rs.getLong("ts"));
-                row.put("pin", pin);
-                data.add(row);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("value", readValue(rs, 2));
+                    row.put("ts", rs.getLong(1));
+                    row.put("pin", pin);
+                    data.add(row);
+                }
+                rs.close();
             }
-            rs.close();
         } catch (SQLException e) {
             log.error("Error querying raw data", e);
             throw new RuntimeException(e);
@@ -80,10 +452,221 @@ public class RawDataDao {
         }
     }
 
+    /**
+     * Stream rows of one device pin in (ts, id) order, starting after the keyset cursor (afterTs, afterId).
+     * The driver fetches fetchSize rows at a time through a server-side cursor, so memory does not
+     * depend on the time range.
+     * With a sample store, its rows and the raw_data rows of the same series (text values, samples it
+     * did not take) are merged. Store rows get ids Long.MIN_VALUE + sequence, below every raw_data id,
+     * so one cursor orders both sources.
+     * @return number of rows handed to the handler
+     */
+    public int streamData(String userId, long dashId, long devId, String pin, long startTs, long endTs,
+                          long afterTs, long afterId, int limit, int fetchSize, RowHandler handler) throws IOException {
+        // v2: the (devkey, pin, ts, id) index covers the whole query (index-only scan)
+        String sql = "SELECT id, ts, " + valueColumns() + " FROM raw_data WHERE " + seriesFilter() +
+                     " AND ts >= ? AND ts <= ? AND (ts, id) > (?, ?) ORDER BY ts, id LIMIT ?";
+        int[] count = {0};
+        try (Connection c = ds.getConnection()) {
+            // PostgreSQL only uses a cursor (fetchSize) inside a transaction
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                ps.setFetchSize(fetchSize);
+                ResultSet rs = null;
+                int i = bindSeries(c, ps, userId, dashId, devId, pin);
+                if (i > 0) {
+                    ps.setLong(i, startTs);
+                    ps.setLong(i + 1, endTs);
+                    ps.setLong(i + 2, afterTs);
+                    ps.setLong(i + 3, afterId);
+                    ps.setInt(i + 4, limit);
+                    rs = ps.executeQuery();
+                }
+                try (RowCursor raw = new RowCursor(rs)) {
+                    if (store != null) {
+                        // A raw_data row as cursor: the store rows of that ts all came before it
+                        long storeAfter = afterId < 0 ? afterId - Long.MIN_VALUE : Long.MAX_VALUE;
+                        store.scan(userId, dashId, devId, pin, startTs, endTs, afterTs, storeAfter, limit, (seq, ts, value) -> {
+                            long id = Long.MIN_VALUE + seq;
+                            while (count[0] < limit && raw.valid && (raw.ts < ts || (raw.ts == ts && raw.id < id))) {
+                                handler.accept(raw.id, raw.ts, raw.value);
+                                count[0]++;
+                                raw.next();
+                            }
+                            if (count[0] < limit) {
+                                handler.accept(id, ts, value);
+                                count[0]++;
+                            }
+                        });
+                    }
+                    while (count[0] < limit && raw.valid) {
+                        handler.accept(raw.id, raw.ts, raw.value);
+                        count[0]++;
+                        raw.next();
+                    }
+                }
+            } finally {
+                c.rollback(); // read-only, just end the transaction
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.error("Error streaming raw data", e);
+            throw new RuntimeException(e);
+        }
+        return count[0];
+    }
+
+    /**
+     * Pull side of the merge in {@link #streamData}: the current raw_data row, if any.
+     */
+    private final class RowCursor implements AutoCloseable {
+        private final ResultSet rs;
+        boolean valid;
+        long id;
+        long ts;
+        String value;
+
+        RowCursor(ResultSet rs) throws IOException {
+            this.rs = rs;
+            next();
+        }
+
+        void next() throws IOException {
+            try {
+                valid = rs != null && rs.next();
+                if (valid) {
+                    id = rs.getLong(1);
+                    ts = rs.getLong(2);
+                    value = readValue(rs, 3);
+                }
+            } catch (SQLException e) {
+                throw new IOException("Error reading raw data", e);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (rs != null) rs.close();
+        }
+    }
+
+    /**
+     * Rollup buckets of one device pin at one resolution, oldest first.
+     * @return number of buckets handed to the handler
+     */
+    public int streamRollups(String userId, long devId, String pin, int resolution, long startTs, long endTs,
+                             RollupHandler handler) throws IOException {
+        String sql = "SELECT bucket, min, max, sum, count FROM raw_data_rollup " +
+                     "WHERE devid = ? AND pin = ? AND resolution = ? AND bucket >= ? AND bucket <= ? AND userid = ? " +
+                     "ORDER BY bucket";
+        int count = 0;
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setLong(1, devId);
+            ps.setString(2, pin);
+            ps.setInt(3, resolution);
+            ps.setLong(4, startTs);
+            ps.setLong(5, endTs);
+            ps.setString(6, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    handler.accept(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getLong(5));
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error querying raw data rollups", e);
+            throw new RuntimeException(e);
+        }
+        return count;
+    }
+
+    /**
+     * Every stored row with ts >= startTs, from the sample store and raw_data, in no particular order.
+     * Read through a cursor of fetchSize rows; used on start to recount the open rollup buckets.
+     */
+    public void forEachPointSince(long startTs, int fetchSize, Consumer<RawDataPoint> sink) throws IOException {
+        if (store != null) {
+            store.scanSince(startTs, sink);
+        }
+        String sql = isTyped()
+            ? "SELECT d.userid, d.dashid, d.devid, r.pin, r.value, r.num, r.ts FROM raw_data r " +
+              "JOIN raw_device d ON d.devkey = r.devkey WHERE r.ts >= ?"
+            : "SELECT userid, dashid, devid, pin, value, ts FROM raw_data WHERE ts >= ?";
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                ps.setFetchSize(fetchSize);
+                ps.setLong(1, startTs);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (isTyped()) {
+                            sink.accept(new RawDataPoint(rs.getString(1), rs.getLong(2), rs.getLong(3),
+                                "V" + rs.getShort(4), readValue(rs, 5), rs.getLong(7)));
+                        } else {
+                            sink.accept(new RawDataPoint(rs.getString(1), rs.getLong(2), rs.getLong(3),
+                                rs.getString(4), rs.getString(5), rs.getLong(6)));
+                        }
+                    }
+                }
+            } finally {
+                c.rollback(); // read-only, just end the transaction
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.error("Error reading recent raw data", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delete the rollup buckets that start at or after the given bucket, per resolution, in one transaction.
+     * @return number of buckets deleted
+     */
+    public int deleteRollupsFrom(Map<Integer, Long> fromBucket) {
+        String sql = "DELETE FROM raw_data_rollup WHERE resolution = ? AND bucket >= ?";
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            int deleted = 0;
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                for (Map.Entry<Integer, Long> e : fromBucket.entrySet()) {
+                    ps.setInt(1, e.getKey());
+                    ps.setLong(2, e.getValue());
+                    deleted += ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            log.error("Error deleting open rollup buckets", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delete the rollup buckets of one resolution that start before the cutoff.
+     */
+    public int deleteRollupsOlderThan(int resolution, long cutoffTs) {
+        String sql = "DELETE FROM raw_data_rollup WHERE resolution = ? AND bucket < ?";
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setInt(1, resolution);
+            ps.setLong(2, cutoffTs);
+            return ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Error deleting old rollup buckets", e);
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Delete raw data older than a given timestamp (for cleanup).
      */
     public int deleteOlderThan(long ts) {
+        deleteFromStore(ts);
         String sql = "DELETE FROM raw_data WHERE ts < ?";
         try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, ts);
@@ -95,22 +678,174 @@ public class RawDataDao {
     }
     
     /**
-     * Delete old raw data but keep the latest record for each device/pin combination.
-     * This ensures we always have at least one record per device/pin.
+     * Delete at most limit rows older than ts. v1 walks the idx_raw_data_ts btree oldest first; v2 only
+     * has a BRIN index on ts, which cannot return rows in order, so any expired rows are taken.
+     * Call repeatedly until it returns less than limit; each call is its own short transaction.
      */
-    public int deleteOlderThanKeepLatest(long ts) {
-        // Delete old records except the most recent one for each devid/pin combination
-        String sql = "DELETE FROM raw_data " +
-                     "WHERE ts < ? " +
-                     "AND id NOT IN (" +
-                     "  SELECT MAX(id) FROM raw_data GROUP BY devid, pin" +
-                     ")";
+    public int deleteOlderThanChunk(long ts, int limit) {
+        deleteFromStore(ts);
+        // ORDER BY on v2 would bitmap-scan and sort every expired range for each chunk
+        String sql = "DELETE FROM raw_data WHERE (id, ts) IN (" +
+                     "SELECT id, ts FROM raw_data WHERE ts < ?" + (isTyped() ? "" : " ORDER BY ts") + " LIMIT ?)";
         try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, ts);
+            ps.setInt(2, limit);
             return ps.executeUpdate();
         } catch (SQLException e) {
-            log.error("Error deleting old raw data with keep latest", e);
+            log.error("Error deleting old raw data chunk", e);
             throw new RuntimeException(e);
         }
     }
+
+    private void deleteFromStore(long ts) {
+        if (store != null) {
+            long dropped = store.deleteOlderThan(ts);
+            if (dropped > 0) {
+                log.info("Dropped {} samples older than {} from the sample store", dropped, ts);
+            }
+        }
+    }
+
+    /**
+     * Last known value of a device pin, or null if it was never written.
+     */
+    public String queryLatest(long devId, String pin) {
+        String sql = "SELECT value FROM pin_latest WHERE devid = ? AND pin = ?";
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setLong(1, devId);
+            ps.setString(2, pin);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            log.error("Error querying latest pin value", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Last known value of every pin of a device (pin name -> value).
+     */
+    public Map<String, String> queryLatestAll(long devId) {
+        String sql = "SELECT pin, value FROM pin_latest WHERE devid = ?";
+        Map<String, String> values = new HashMap<>();
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setLong(1, devId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    values.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error querying latest pin values", e);
+            throw new RuntimeException(e);
+        }
+        return values;
+    }
+
+    /**
+     * True if raw_data has the v2 layout (created with rawdata.schema=v2). Checked once.
+     */
+    public boolean isTyped() {
+        Boolean t = typed;
+        if (t != null) return t;
+        String sql = "SELECT 1 FROM information_schema.columns WHERE table_name = 'raw_data' AND column_name = 'devkey'";
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            t = rs.next();
+        } catch (SQLException e) {
+            log.error("Error checking raw_data schema", e);
+            throw new RuntimeException(e);
+        }
+        typed = t;
+        return t;
+    }
+
+    /**
+     * True if raw_data was created as a partitioned table (rawdata.partitioned=true).
+     */
+    public boolean isPartitioned() {
+        String sql = "SELECT relkind FROM pg_class WHERE oid = to_regclass('raw_data')";
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() && "p".equals(rs.getString(1));
+        } catch (SQLException e) {
+            log.error("Error checking raw_data partitioning", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create the daily partitions (UTC) covering the given day and the following days that do not exist yet.
+     * @return number of partitions created
+     */
+    public int createPartitions(long fromTs, int days) {
+        LocalDate first = Instant.ofEpochMilli(fromTs).atZone(ZoneOffset.UTC).toLocalDate();
+        int created = 0;
+        try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+            for (int i = 0; i < days; i++) {
+                LocalDate day = first.plusDays(i);
+                long start = day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                long end = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                String name = PARTITION_PREFIX + day.format(PARTITION_DAY);
+                if (exists(c, name)) {
+                    continue;
+                }
+                s.execute("CREATE TABLE " + name + " PARTITION OF raw_data FOR VALUES FROM (" + start + ") TO (" + end + ")");
+                created++;
+            }
+        } catch (SQLException e) {
+            log.error("Error creating raw_data partitions", e);
+            throw new RuntimeException(e);
+        }
+        return created;
+    }
+
+    /**
+     * Drop every daily partition that ends at or before the cutoff, and trim the default partition.
+     * @return names of the dropped partitions
+     */
+    public List<String> dropPartitionsBefore(long cutoffTs) {
+        deleteFromStore(cutoffTs);
+        String sql = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                     "WHERE i.inhparent = 'raw_data'::regclass AND c.relname LIKE '" + PARTITION_PREFIX + "%' ORDER BY c.relname";
+        List<String> dropped = new ArrayList<>();
+        try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+            List<String> expired = new ArrayList<>();
+            try (ResultSet rs = s.executeQuery(sql)) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    LocalDate day;
+                    try {
+                        day = LocalDate.parse(name.substring(PARTITION_PREFIX.length()), PARTITION_DAY);
+                    } catch (RuntimeException e) {
+                        continue; // not one of ours
+                    }
+                    long end = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                    if (end <= cutoffTs) {
+                        expired.add(name);
+                    }
+                }
+            }
+            for (String name : expired) {
+                s.execute("DROP TABLE IF EXISTS " + name);
+                dropped.add(name);
+            }
+            // Rows outside every daily range (e.g. replayed late) are few; delete them normally
+            s.execute("DELETE FROM raw_data_default WHERE ts < " + cutoffTs);
+        } catch (SQLException e) {
+            log.error("Error dropping expired raw_data partitions", e);
+            throw new RuntimeException(e);
+        }
+        return dropped;
+    }
+
+    private static boolean exists(Connection c, String relname) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM pg_class WHERE relname = ?")) {
+            ps.setString(1, relname);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
 }
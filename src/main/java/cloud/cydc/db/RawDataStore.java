@@ -0,0 +1,50 @@
+package cloud.cydc.db;
+
+import cloud.cydc.model.RawDataPoint;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Storage for raw pin samples when they are not kept as raw_data rows.
+ * {@link RawDataDao} hands the samples to the store and keeps pin_latest and the rollups in Postgres.
+ */
+public interface RawDataStore {
+
+    /**
+     * @return true if the store can hold this sample (checked before the database transaction)
+     */
+    boolean accepts(RawDataPoint point);
+
+    /**
+     * Store the samples it can hold. Never throws: if a write fails, the samples from that one on
+     * are handed back, so the caller stores exactly the ones that are not in the store.
+     * @return the points it did not take (non-numeric values, older than the last sample of their
+     * series, or not written because of an error), for raw_data
+     */
+    List<RawDataPoint> append(List<RawDataPoint> points);
+
+    /**
+     * Same contract as {@link RawDataDao#streamData}: (ts, id) order, after the keyset cursor.
+     * @return number of rows handed to the handler, -1 if the store has no such series
+     */
+    int scan(String userId, long dashId, long devId, String pin, long startTs, long endTs,
+             long afterTs, long afterId, int limit, RawDataDao.RowHandler handler) throws IOException;
+
+    /**
+     * Every sample with ts >= startTs, series by series.
+     */
+    void scanSince(long startTs, Consumer<RawDataPoint> sink) throws IOException;
+
+    /**
+     * Drop data older than ts (whole segments at a time).
+     * @return number of samples dropped
+     */
+    long deleteOlderThan(long ts);
+
+    Map<String, Object> getStats();
+
+    void close();
+}
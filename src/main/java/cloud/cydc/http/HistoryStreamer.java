@@ -0,0 +1,274 @@
+package cloud.cydc.http;
+
+import cloud.cydc.model.DeviceIdentity;
+import cloud.cydc.service.RawDataService;
+import cloud.cydc.service.RollupAggregator;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Streams pin history as chunked JSON: rows go from the JDBC cursor straight into a Jackson
+ * generator and out in 16 KB HTTP chunks. Queries run on a small pool (JDBC blocks), and the
+ * worker waits for the socket to drain whenever the channel is not writable, so memory per
+ * request stays constant whatever the time range.
+ * Response: {"pin":"V1","data":[{"ts":..,"value":".."},...],"next":"ts:id"} where next is the
+ * cursor for the following page (after=ts:id), or null on the last page.
+ * With a point count, aggregates are returned instead:
+ * {"pin":"V1","resolution":3600,"data":[{"ts":..,"min":..,"max":..,"avg":..,"count":..},...]}
+ */
+public class HistoryStreamer {
+    private static final Logger log = LoggerFactory.getLogger(HistoryStreamer.class);
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final RawDataService rawDataService;
+    private final ExecutorService executor;
+
+    public HistoryStreamer(RawDataService rawDataService, int threads) {
+        this.rawDataService = rawDataService;
+        AtomicInteger seq = new AtomicInteger();
+        // Bounded queue: when every worker is busy, extra requests get 503 instead of piling up
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(threads * 16), r -> {
+                Thread t = new Thread(r, "http-history-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    public boolean isEnabled() {
+        return rawDataService != null && rawDataService.isEnabled();
+    }
+
+    /**
+     * Start streaming on the worker pool.
+     * @return false if the pool is saturated (nothing was written)
+     */
+    public boolean stream(ChannelHandlerContext ctx, boolean keepAlive, DeviceIdentity identity, int pinNum,
+                          long from, long to, long afterTs, long afterId, int limit) {
+        pauseReading(ctx);
+        try {
+            executor.execute(() -> run(ctx, keepAlive, identity, pinNum, from, to, afterTs, afterId, limit));
+            return true;
+        } catch (RejectedExecutionException e) {
+            resumeReading(ctx);
+            return false;
+        }
+    }
+
+    /**
+     * Start streaming rollup buckets (at most about maxPoints) on the worker pool.
+     * @return false if the pool is saturated (nothing was written)
+     */
+    public boolean streamRollups(ChannelHandlerContext ctx, boolean keepAlive, DeviceIdentity identity, int pinNum,
+                                 long from, long to, int maxPoints) {
+        pauseReading(ctx);
+        try {
+            executor.execute(() -> runRollups(ctx, keepAlive, identity, pinNum, from, to, maxPoints));
+            return true;
+        } catch (RejectedExecutionException e) {
+            resumeReading(ctx);
+            return false;
+        }
+    }
+
+    /**
+     * Stop reading while a worker owns the response: a pipelined keep-alive request would
+     * otherwise get its response written into the middle of the chunked stream.
+     * Called on the event loop, so no further request is decoded after this returns.
+     */
+    private static void pauseReading(ChannelHandlerContext ctx) {
+        ctx.channel().config().setAutoRead(false);
+    }
+
+    private static void resumeReading(ChannelHandlerContext ctx) {
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    private void runRollups(ChannelHandlerContext ctx, boolean keepAlive, DeviceIdentity identity, int pinNum,
+                            long from, long to, int maxPoints) {
+        String pin = "V" + pinNum;
+        int resolution = RollupAggregator.pickResolution(from, to, maxPoints);
+        ChunkOutput out = startResponse(ctx, keepAlive);
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeStringField("pin", pin);
+            gen.writeNumberField("resolution", resolution);
+            gen.writeArrayFieldStart("data");
+            rawDataService.streamRollups(identity.getUserId(), identity.getDevId(), pin, from, to, maxPoints,
+                (bucket, min, max, sum, count) -> {
+                    gen.writeStartObject();
+                    gen.writeNumberField("ts", bucket);
+                    gen.writeNumberField("min", min);
+                    gen.writeNumberField("max", max);
+                    gen.writeNumberField("avg", sum / count);
+                    gen.writeNumberField("count", count);
+                    gen.writeEndObject();
+                });
+            gen.writeEndArray();
+            gen.writeEndObject();
+        } catch (Exception e) {
+            abort(ctx, out, identity, pinNum, e);
+            return;
+        }
+        finish(ctx, keepAlive);
+    }
+
+    private ChunkOutput startResponse(ChannelHandlerContext ctx, boolean keepAlive) {
+        HttpResponse resp = new DefaultHttpResponse(HTTP_1_1, OK);
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        resp.headers().set("Access-Control-Allow-Origin", "*");
+        HttpUtil.setTransferEncodingChunked(resp, true);
+        if (keepAlive) {
+            resp.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.writeAndFlush(resp);
+        return new ChunkOutput(ctx);
+    }
+
+    private void abort(ChannelHandlerContext ctx, ChunkOutput out, DeviceIdentity identity, int pinNum, Exception e) {
+        // Headers are already sent; cutting the connection is the only way to signal the error
+        log.warn("History stream for device {} V{} aborted: {}", identity.getDevId(), pinNum, e.getMessage());
+        out.release();
+        ctx.close();
+        resumeReading(ctx);
+    }
+
+    private void finish(ChannelHandlerContext ctx, boolean keepAlive) {
+        ChannelFuture done = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            done.addListener(ChannelFutureListener.CLOSE);
+        } else {
+            // The last chunk is queued ahead of anything the next request writes
+            resumeReading(ctx);
+        }
+    }
+
+    private void run(ChannelHandlerContext ctx, boolean keepAlive, DeviceIdentity identity, int pinNum,
+                     long from, long to, long afterTs, long afterId, int limit) {
+        ChunkOutput out = startResponse(ctx, keepAlive);
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            String pin = "V" + pinNum;
+            long[] last = {afterTs, afterId};
+            gen.writeStartObject();
+            gen.writeStringField("pin", pin);
+            gen.writeArrayFieldStart("data");
+            int rows = rawDataService.streamRawData(identity.getUserId(), identity.getDashId(), identity.getDevId(),
+                pin, from, to, afterTs, afterId, limit, (id, ts, value) -> {
+                    gen.writeStartObject();
+                    gen.writeNumberField("ts", ts);
+                    gen.writeStringField("value", value);
+                    gen.writeEndObject();
+                    last[0] = ts;
+                    last[1] = id;
+                });
+            gen.writeEndArray();
+            if (rows == limit) {
+                gen.writeStringField("next", last[0] + ":" + last[1]);
+            } else {
+                gen.writeNullField("next");
+            }
+            gen.writeEndObject();
+        } catch (Exception e) {
+            abort(ctx, out, identity, pinNum, e);
+            return;
+        }
+        finish(ctx, keepAlive);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Collects generator output into a ByteBuf and sends it as an HTTP chunk every CHUNK_SIZE bytes.
+     */
+    private static final class ChunkOutput extends OutputStream {
+        private final ChannelHandlerContext ctx;
+        private ByteBuf buf;
+        private ChannelFuture lastWrite;
+
+        ChunkOutput(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureBuffer().writeByte(b);
+            if (buf.readableBytes() >= CHUNK_SIZE) sendChunk();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureBuffer().writeBytes(b, off, len);
+            if (buf.readableBytes() >= CHUNK_SIZE) sendChunk();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Only whole chunks are sent while streaming; the generator flushes on close
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buf != null && buf.isReadable()) sendChunk();
+            release();
+        }
+
+        private ByteBuf ensureBuffer() throws IOException {
+            if (!ctx.channel().isActive()) {
+                throw new IOException("client disconnected");
+            }
+            if (buf == null) {
+                buf = ctx.alloc().buffer(CHUNK_SIZE + 1024);
+            }
+            return buf;
+        }
+
+        private void sendChunk() throws IOException {
+            ByteBuf chunk = buf;
+            buf = null;
+            lastWrite = ctx.writeAndFlush(new DefaultHttpContent(chunk));
+            // Backpressure: stop reading from the cursor until the socket catches up
+            if (!ctx.channel().isWritable()) {
+                lastWrite.awaitUninterruptibly();
+                if (!lastWrite.isSuccess()) {
+                    throw new IOException("write failed", lastWrite.cause());
+                }
+            }
+        }
+
+        void release() {
+            if (buf != null) {
+                buf.release();
+                buf = null;
+            }
+        }
+    }
+}
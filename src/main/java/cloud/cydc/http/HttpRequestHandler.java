@@ -1,11 +1,14 @@
 package cloud.cydc.http;
 
+import cloud.cydc.blynk.BlynkProtocolHandler;
 import cloud.cydc.model.Dashboard;
+import cloud.cydc.model.DeviceIdentity;
 import cloud.cydc.model.DeviceInfo;
 import cloud.cydc.service.DashboardService;
 import cloud.cydc.service.DeviceInfoService;
 import cloud.cydc.service.UsersService;
 import cloud.cydc.service.VirtualPinService;
+import cloud.cydc.util.RateLimiter;
 import cloud.cydc.util.TokenValidator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.netty.buffer.Unpooled;
@@ -19,6 +22,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
 
 import java.nio.charset.StandardCharsets;
 import java.util.regex.Matcher;
@@ -28,20 +32,26 @@ import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final int MAX_HISTORY_LIMIT = 100_000;
     private final UsersService usersService;
     private final DashboardService dashboardService;
     private final DeviceInfoService deviceService;
     private final VirtualPinService pinService;
     private final TokenValidator tokenValidator;
+    private final RateLimiter rateLimiter;
+    private final HistoryStreamer historyStreamer;
     private final ObjectMapper mapper = new ObjectMapper();
 
     public HttpRequestHandler(UsersService usersService, DashboardService dashboardService, 
-                              DeviceInfoService deviceService, VirtualPinService pinService) {
+                              DeviceInfoService deviceService, VirtualPinService pinService,
+                              TokenValidator tokenValidator, RateLimiter rateLimiter, HistoryStreamer historyStreamer) {
         this.usersService = usersService;
         this.dashboardService = dashboardService;
         this.deviceService = deviceService;
         this.pinService = pinService;
-        this.tokenValidator = new TokenValidator(deviceService);
+        this.tokenValidator = tokenValidator;
+        this.rateLimiter = rateLimiter;
+        this.historyStreamer = historyStreamer;
     }
 
     @Override
@@ -187,6 +197,9 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                     d.getLastLoggedIP(), d.getHardwareInfo(), d.isUserIcon());
                 
                 deviceService.createOrUpdate(userId, dashId, d);
+                // Token may have changed, or may have been negative-cached before it was assigned
+                tokenValidator.invalidateDevice(userId, dashId, devId);
+                tokenValidator.invalidate(token);
                 String json = deviceService.findJsonById(userId, dashId, d.getId());
                 writeJson(ctx, CREATED, json != null ? json : "{\"status\":\"ok\"}", req);
                 return;
@@ -210,7 +223,10 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 String userId = deviceDeleteMatcher.group(1);
                 long dashId = Long.parseLong(deviceDeleteMatcher.group(2));
                 long devId = Long.parseLong(deviceDeleteMatcher.group(3));
-                if (deviceService.delete(userId, dashId, devId)) writeJson(ctx, OK, "{\"status\":\"deleted\"}", req);
+                boolean deleted = deviceService.delete(userId, dashId, devId);
+                tokenValidator.invalidateDevice(userId, dashId, devId);
+                pinService.deleteAllPins(devId);
+                if (deleted) writeJson(ctx, OK, "{\"status\":\"deleted\"}", req);
                 else writeJson(ctx, NOT_FOUND, "{\"error\":\"not_found\"}", req);
                 return;
             }
@@ -233,6 +249,9 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                            d.getConnectTime(), d.getFirstConnectTime(), d.getDataReceivedAt(),
                            d.getLastLoggedIP(), d.getHardwareInfo(), d.isUserIcon());
                        deviceService.createOrUpdate(userId, dashId, updatedD);
+                       tokenValidator.invalidate(d.getToken());
+                       tokenValidator.invalidateDevice(userId, dashId, devId);
+                       tokenValidator.invalidate(updatedToken);
                        writeJson(ctx, OK, "{\"token\":\"" + updatedToken + "\"}", req);
                     } else {
                        writeJson(ctx, NOT_FOUND, "{\"error\":\"device not found\"}", req);
@@ -243,8 +262,8 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             // Virtual Pin APIs - RESTful style
             if (uri.equals("/api/pins") && "PUT".equals(method)) {
                 // Extract and validate token from header
-                String token = extractToken(req);
-                if (token == null || !tokenValidator.validateToken(token)) {
+                DeviceIdentity identity = tokenValidator.resolve(extractToken(req));
+                if (identity == null) {
                     writeJson(ctx, UNAUTHORIZED, "{\"error\":\"invalid or missing token\"}", req);
                     return;
                 }
@@ -266,15 +285,21 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                     return;
                 }
                 
-                String[] tokenInfo = tokenValidator.extractTokenInfo(token);
-                if (tokenInfo != null) {
-                    long devId = Long.parseLong(tokenInfo[2]);
-                    String userId = tokenInfo[0];
-                    System.out.println("[HttpHandler] Calling setPinValueWithBroadcast: userId=" + userId + ", devId=" + devId + ", pin=" + pinNum + ", value=" + value);
-                    pinService.setPinValueWithBroadcast(userId, String.valueOf(devId), pinNum, value);
-                    System.out.println("[HttpHandler] setPinValueWithBroadcast completed successfully");
-                } else {
-                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"invalid token format\"}", req);
+                if (rateLimiter != null && !rateLimiter.tryAcquire(identity.getUserId(), identity.getDevId())) {
+                    writeJson(ctx, TOO_MANY_REQUESTS, "{\"error\":\"rate limit exceeded\"}", req);
+                    return;
+                }
+                
+                // Postgres text cannot hold U+0000; one such row would fail its whole raw_data batch
+                if (value.indexOf('\0') >= 0) {
+                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"value must not contain NUL\"}", req);
+                    return;
+                }
+                
+                // Event loop thread: never wait for the write-behind queue, ask the client to retry instead
+                if (pinService.trySetPinValueWithBroadcast(identity.getUserId(), identity.getDashId(), identity.getDevId(),
+                        pinNum, value, -1L) == null) {
+                    writeJson(ctx, SERVICE_UNAVAILABLE, "{\"error\":\"write queue full, retry later\"}", req);
                     return;
                 }
                 writeJson(ctx, OK, "{\"status\":\"ok\",\"pin\":\"" + pin + "\",\"value\":\"" + value + "\"}", req);
@@ -293,24 +318,30 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 }
                 
                 // Extract and validate token from header or query parameter
-                String token = extractToken(req);
-                if (token == null || !tokenValidator.validateToken(token)) {
+                DeviceIdentity identity = tokenValidator.resolve(extractToken(req));
+                if (identity == null) {
                     writeJson(ctx, UNAUTHORIZED, "{\"error\":\"invalid or missing token\"}", req);
                     return;
                 }
                 
+                if (rateLimiter != null && !rateLimiter.tryAcquire(identity.getUserId(), devId)) {
+                    writeJson(ctx, TOO_MANY_REQUESTS, "{\"error\":\"rate limit exceeded\"}", req);
+                    return;
+                }
+                
                 byte[] bytes = new byte[req.content().readableBytes()];
                 req.content().readBytes(bytes);
                 var node = mapper.readTree(bytes);
                 String value = node.isArray() && node.size() > 0 ? node.get(0).asText("0") : node.path("value").asText("0");
+                if (value.indexOf('\0') >= 0) {
+                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"value must not contain NUL\"}", req);
+                    return;
+                }
                 
-                String[] tokenInfo = tokenValidator.extractTokenInfo(token);
-                if (tokenInfo != null) {
-                    String userId = tokenInfo[0];
-                    // Broadcast pin update to WebSocket subscribers
-                    pinService.setPinValueWithBroadcast(userId, String.valueOf(devId), pinNum, value);
-                } else {
-                    pinService.setPinValue(devId, pinNum, value);
+                // Broadcast pin update to WebSocket subscribers
+                if (pinService.trySetPinValueWithBroadcast(identity.getUserId(), identity.getDashId(), devId, pinNum, value, -1L) == null) {
+                    writeJson(ctx, SERVICE_UNAVAILABLE, "{\"error\":\"write queue full, retry later\"}", req);
+                    return;
                 }
                 writeJson(ctx, OK, "{\"status\":\"ok\"}", req);
                 return;
@@ -339,6 +370,78 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 return;
             }
 
+            // Pin history: /api/history/{devId}/V{pin}?from=&to=&limit=&after=ts:id (streamed, keyset paging)
+            // or ?from=&to=&points=N for minute/hour/day aggregates (chart data)
+            Pattern historyPattern = Pattern.compile("/api/history/([0-9]+)/V([0-9]+)");
+            Matcher historyMatcher = historyPattern.matcher(uri);
+            if (historyMatcher.matches() && "GET".equals(method)) {
+                long devId = Long.parseLong(historyMatcher.group(1));
+                int pinNum = Integer.parseInt(historyMatcher.group(2));
+                if (pinNum < 0 || pinNum >= 128) {
+                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"pin out of range\"}", req);
+                    return;
+                }
+                
+                DeviceIdentity identity = tokenValidator.resolve(extractToken(req));
+                if (identity == null) {
+                    writeJson(ctx, UNAUTHORIZED, "{\"error\":\"invalid or missing token\"}", req);
+                    return;
+                }
+                if (identity.getDevId() != devId) {
+                    writeJson(ctx, FORBIDDEN, "{\"error\":\"token does not belong to device\"}", req);
+                    return;
+                }
+                if (historyStreamer == null || !historyStreamer.isEnabled()) {
+                    writeJson(ctx, NOT_FOUND, "{\"error\":\"raw data storage disabled\"}", req);
+                    return;
+                }
+                
+                QueryStringDecoder query = new QueryStringDecoder(fullUri);
+                long from, to, afterTs = Long.MIN_VALUE, afterId = Long.MIN_VALUE;
+                int limit;
+                try {
+                    from = Long.parseLong(queryParam(query, "from", "0"));
+                    to = Long.parseLong(queryParam(query, "to", String.valueOf(Long.MAX_VALUE)));
+                    limit = Math.min(Integer.parseInt(queryParam(query, "limit", "10000")), MAX_HISTORY_LIMIT);
+                    String after = queryParam(query, "after", null);
+                    if (after != null) {
+                        int colon = after.indexOf(':');
+                        afterTs = Long.parseLong(after.substring(0, colon));
+                        afterId = Long.parseLong(after.substring(colon + 1));
+                    }
+                } catch (RuntimeException e) {
+                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"invalid from/to/limit/after\"}", req);
+                    return;
+                }
+                if (limit <= 0) {
+                    writeJson(ctx, BAD_REQUEST, "{\"error\":\"limit must be positive\"}", req);
+                    return;
+                }
+                
+                String points = queryParam(query, "points", null);
+                if (points != null) {
+                    int maxPoints;
+                    try {
+                        maxPoints = Integer.parseInt(points);
+                    } catch (NumberFormatException e) {
+                        maxPoints = 0;
+                    }
+                    if (maxPoints <= 0 || to == Long.MAX_VALUE) {
+                        writeJson(ctx, BAD_REQUEST, "{\"error\":\"points needs a positive count and a to= timestamp\"}", req);
+                        return;
+                    }
+                    if (!historyStreamer.streamRollups(ctx, HttpUtil.isKeepAlive(req), identity, pinNum, from, to, maxPoints)) {
+                        writeJson(ctx, SERVICE_UNAVAILABLE, "{\"error\":\"too many history requests\"}", req);
+                    }
+                    return;
+                }
+                
+                if (!historyStreamer.stream(ctx, HttpUtil.isKeepAlive(req), identity, pinNum, from, to, afterTs, afterId, limit)) {
+                    writeJson(ctx, SERVICE_UNAVAILABLE, "{\"error\":\"too many history requests\"}", req);
+                }
+                return;
+            }
+
             Pattern allPinsPattern = Pattern.compile("/api/pin/([0-9]+)");
             Matcher allPinsMatcher = allPinsPattern.matcher(uri);
             if (allPinsMatcher.matches() && "GET".equals(method)) {
@@ -370,7 +473,10 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                     "\"memory_max_mb\":" + memMax + "," +
                     "\"java_version\":\"" + System.getProperty("java.version") + "\"," +
                     "\"timestamp\":" + System.currentTimeMillis() + "," +
-                    "\"pin_stats\":" + mapper.writeValueAsString(pinStats) +
+                    "\"pin_stats\":" + mapper.writeValueAsString(pinStats) + "," +
+                    "\"token_cache\":" + mapper.writeValueAsString(tokenValidator.getCacheStats()) + "," +
+                    (rateLimiter != null ? "\"rate_limit\":" + mapper.writeValueAsString(rateLimiter.getStats()) + "," : "") +
+                    "\"blynk_outbound\":" + mapper.writeValueAsString(BlynkProtocolHandler.getOutboundStats()) +
                     "}";
                 writeJson(ctx, OK, stats, req);
                 return;
@@ -442,6 +548,11 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
 
+    private static String queryParam(QueryStringDecoder query, String name, String def) {
+        var values = query.parameters().get(name);
+        return values == null || values.isEmpty() ? def : values.get(0);
+    }
+
     private String extractToken(FullHttpRequest req) {
         String query = req.uri();
         if (query.contains("?")) {
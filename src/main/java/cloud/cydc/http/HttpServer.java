@@ -1,17 +1,17 @@
 package cloud.cydc.http;
 
+import cloud.cydc.netty.NettyTransport;
 import cloud.cydc.service.DashboardService;
 import cloud.cydc.service.DeviceInfoService;
 import cloud.cydc.service.UsersService;
 import cloud.cydc.service.VirtualPinService;
+import cloud.cydc.util.RateLimiter;
+import cloud.cydc.util.TokenValidator;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 
@@ -25,31 +25,35 @@ public class HttpServer {
     private final DashboardService dashboardService;
     private final DeviceInfoService deviceService;
     private final VirtualPinService pinService;
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private final TokenValidator tokenValidator;
+    private final RateLimiter rateLimiter;
+    private final NettyTransport transport;
+    private final HistoryStreamer historyStreamer;
     private Channel serverChannel;
 
     public HttpServer(int port, UsersService usersService, DashboardService dashboardService,
-                      DeviceInfoService deviceService, VirtualPinService pinService) {
+                      DeviceInfoService deviceService, VirtualPinService pinService,
+                      TokenValidator tokenValidator, RateLimiter rateLimiter, NettyTransport transport,
+                      HistoryStreamer historyStreamer) {
         this.port = port;
         this.usersService = usersService;
         this.dashboardService = dashboardService;
         this.deviceService = deviceService;
         this.pinService = pinService;
+        this.tokenValidator = tokenValidator;
+        this.rateLimiter = rateLimiter;
+        this.transport = transport;
+        this.historyStreamer = historyStreamer;
     }
 
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
-        ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup)
-         .channel(NioServerSocketChannel.class)
-         .childHandler(new ChannelInitializer<SocketChannel>() {
+        ServerBootstrap b = transport.newServerBootstrap();
+        b.childHandler(new ChannelInitializer<SocketChannel>() {
              @Override
              protected void initChannel(SocketChannel ch) throws Exception {
                  ch.pipeline().addLast(new HttpServerCodec());
                  ch.pipeline().addLast(new HttpObjectAggregator(10 * 1024 * 1024));
-                 ch.pipeline().addLast(new HttpRequestHandler(usersService, dashboardService, deviceService, pinService));
+                 ch.pipeline().addLast(new HttpRequestHandler(usersService, dashboardService, deviceService, pinService, tokenValidator, rateLimiter, historyStreamer));
              }
          })
          .childOption(ChannelOption.SO_KEEPALIVE, true);
@@ -68,8 +72,10 @@ public class HttpServer {
         if (serverChannel != null) {
             serverChannel.close();
         }
-        if (bossGroup != null) bossGroup.shutdownGracefully();
-        if (workerGroup != null) workerGroup.shutdownGracefully();
+        if (historyStreamer != null) {
+            historyStreamer.shutdown();
+        }
+        // Event loops are shared and shut down by the owning NettyTransport
         log.info("HTTP server stopped");
     }
 }
@@ -0,0 +1,25 @@
+package cloud.cydc.model;
+
+/**
+ * Identity resolved from a device token (userId-dashId-deviceId-randomPart).
+ */
+public final class DeviceIdentity {
+    private final String userId;
+    private final long dashId;
+    private final long devId;
+
+    public DeviceIdentity(String userId, long dashId, long devId) {
+        this.userId = userId;
+        this.dashId = dashId;
+        this.devId = devId;
+    }
+
+    public String getUserId() { return userId; }
+    public long getDashId() { return dashId; }
+    public long getDevId() { return devId; }
+
+    @Override
+    public String toString() {
+        return userId + "/" + dashId + "/" + devId;
+    }
+}
@@ -0,0 +1,61 @@
+package cloud.cydc.model;
+
+/**
+ * One virtual pin write waiting to be stored in raw_data.
+ */
+public final class RawDataPoint {
+    private final String userId;
+    private final long dashId;
+    private final long devId;
+    private final String pin;
+    private final String value;
+    private final long ts;
+
+    public RawDataPoint(String userId, long dashId, long devId, String pin, String value, long ts) {
+        this.userId = userId;
+        this.dashId = dashId;
+        this.devId = devId;
+        this.pin = pin;
+        this.value = value;
+        this.ts = ts;
+    }
+
+    public String getUserId() { return userId; }
+    public long getDashId() { return dashId; }
+    public long getDevId() { return devId; }
+    public String getPin() { return pin; }
+    public String getValue() { return value; }
+    public long getTs() { return ts; }
+
+    /**
+     * @return the value as a number, or NaN if it is not a finite number
+     */
+    public double numericValue() {
+        if (value == null || value.isEmpty()) return Double.NaN;
+        try {
+            double v = Double.parseDouble(value);
+            return Double.isInfinite(v) ? Double.NaN : v;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * True if the value is a number that {@link #formatNumber} gives back unchanged,
+     * so storing it as a double loses nothing ("25", "21.5"; not "25.0" or "1e3").
+     */
+    public boolean isCanonicalNumber() {
+        double v = numericValue();
+        return !Double.isNaN(v) && formatNumber(v).equals(value);
+    }
+
+    /**
+     * Text of a stored number: whole numbers without a fraction ("25", not "25.0").
+     */
+    public static String formatNumber(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+}
@@ -0,0 +1,43 @@
+package cloud.cydc.model;
+
+/**
+ * min/max/sum/count of the numeric values of one device pin within one time bucket.
+ * resolution is the bucket length in seconds (60, 3600, 86400), bucket is its start in epoch ms.
+ */
+public final class RollupBucket {
+    private final String userId;
+    private final long dashId;
+    private final long devId;
+    private final String pin;
+    private final int resolution;
+    private final long bucket;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final long count;
+
+    public RollupBucket(String userId, long dashId, long devId, String pin, int resolution, long bucket,
+                        double min, double max, double sum, long count) {
+        this.userId = userId;
+        this.dashId = dashId;
+        this.devId = devId;
+        this.pin = pin;
+        this.resolution = resolution;
+        this.bucket = bucket;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public String getUserId() { return userId; }
+    public long getDashId() { return dashId; }
+    public long getDevId() { return devId; }
+    public String getPin() { return pin; }
+    public int getResolution() { return resolution; }
+    public long getBucket() { return bucket; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+    public double getSum() { return sum; }
+    public long getCount() { return count; }
+}
@@ -2,9 +2,7 @@ package cloud.cydc.netty;
 
 import cloud.cydc.service.DeviceService;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,24 +10,21 @@ public class NettyServer {
     private static final Logger log = LoggerFactory.getLogger(NettyServer.class);
     private final int port;
     private final DeviceService deviceService;
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private final NettyTransport transport;
+    private Channel serverChannel;
 
-    public NettyServer(int port, DeviceService deviceService) {
+    public NettyServer(int port, DeviceService deviceService, NettyTransport transport) {
         this.port = port;
         this.deviceService = deviceService;
+        this.transport = transport;
     }
 
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .childHandler(new NettyInitializer(deviceService));
+            ServerBootstrap b = transport.newServerBootstrap();
+            b.childHandler(new NettyInitializer(deviceService));
 
-            b.bind(port).sync();
+            serverChannel = b.bind(port).sync().channel();
             log.info("Netty server started on port {}", port);
             // do not block here; caller may manage lifecycle
         } catch (InterruptedException e) {
@@ -38,8 +33,8 @@ public class NettyServer {
     }
 
     public void stop() {
-        if (bossGroup != null) bossGroup.shutdownGracefully();
-        if (workerGroup != null) workerGroup.shutdownGracefully();
+        // Event loops are shared and shut down by the owning NettyTransport
+        if (serverChannel != null) serverChannel.close();
         log.info("Netty server stopped");
     }
 }
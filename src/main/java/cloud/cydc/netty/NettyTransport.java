@@ -0,0 +1,82 @@
+package cloud.cydc.netty;
+
+import cloud.cydc.config.Config;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event loops and channel type shared by every server (tcp, http, blynk, websocket).
+ * Uses native epoll on Linux when available and falls back to NIO otherwise.
+ */
+public final class NettyTransport {
+    private static final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+
+    private final boolean epoll;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final int backlog;
+
+    public NettyTransport(Config cfg) {
+        boolean epollEnabled = Boolean.parseBoolean(cfg.get("netty.epoll.enabled", "true"));
+        // 0 = Netty default (2 x cores)
+        int workerThreads = Integer.parseInt(cfg.get("netty.worker.threads", "0"));
+        this.backlog = Integer.parseInt(cfg.get("netty.backlog", "1024"));
+        this.epoll = epollEnabled && Epoll.isAvailable();
+
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("netty-boss"));
+            workerGroup = new EpollEventLoopGroup(workerThreads, new DefaultThreadFactory("netty-worker"));
+        } else {
+            if (epollEnabled) {
+                log.info("Native epoll not available ({}), using NIO", String.valueOf(Epoll.unavailabilityCause()));
+            }
+            bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("netty-boss"));
+            workerGroup = new NioEventLoopGroup(workerThreads, new DefaultThreadFactory("netty-worker"));
+        }
+        log.info("Netty transport: {} (worker threads: {}, backlog: {})",
+            epoll ? "epoll" : "nio", workerThreads > 0 ? workerThreads : "default", backlog);
+    }
+
+    /**
+     * Server bootstrap bound to the shared groups, with the common socket options applied.
+     * Callers add their own childHandler (and any extra options).
+     */
+    public ServerBootstrap newServerBootstrap() {
+        Class<? extends ServerChannel> channelClass = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+        ServerBootstrap b = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(channelClass)
+            .option(ChannelOption.SO_BACKLOG, backlog)
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childOption(ChannelOption.TCP_NODELAY, true);
+        if (epoll) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        return b;
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    public void shutdown() {
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+        log.info("Netty transport stopped");
+    }
+}
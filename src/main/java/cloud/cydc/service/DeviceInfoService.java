@@ -4,10 +4,13 @@ import cloud.cydc.cache.RedisClientManager;
 import cloud.cydc.db.DeviceInfoDao;
 import cloud.cydc.model.DeviceInfo;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.UUID;
 
 public class DeviceInfoService {
+    private static final Logger log = LoggerFactory.getLogger(DeviceInfoService.class);
     private final DeviceInfoDao dao;
     private final ObjectMapper mapper = new ObjectMapper();
 
@@ -45,10 +48,7 @@ public class DeviceInfoService {
 
     public boolean delete(String userId, long dashId, long devId) {
         RedisClientManager.sync().del("device:" + userId + ":" + dashId + ":" + devId);
-        // also delete all pins for this device
-        for (int i = 0; i < 128; i++) {
-            RedisClientManager.sync().del("pin:" + devId + ":V" + i);
-        }
+        // Pin data is removed by VirtualPinService.deleteAllPins (memory + Redis, one DEL)
         return dao.deleteById(userId, dashId, devId);
     }
 
@@ -61,17 +61,14 @@ public class DeviceInfoService {
     }
 
     public String findTokenByDeviceId(String userId, long dashId, long devId) {
-        System.out.println("[DeviceInfoService] findTokenByDeviceId - userId: " + userId + ", dashId: " + dashId + ", devId: " + devId);
+        log.debug("[DeviceInfoService] findTokenByDeviceId - userId: {}, dashId: {}, devId: {}", userId, dashId, devId);
         String json = findJsonById(userId, dashId, devId);
-        System.out.println("[DeviceInfoService] Found JSON: " + (json != null ? json.substring(0, Math.min(100, json.length())) : "null"));
         if (json == null) return null;
         try {
             DeviceInfo d = mapper.readValue(json, DeviceInfo.class);
-            System.out.println("[DeviceInfoService] Parsed token: " + d.getToken());
             return d.getToken();
         } catch (Exception e) {
-            System.out.println("[DeviceInfoService] Exception parsing JSON: " + e.getMessage());
-            e.printStackTrace();
+            log.error("[DeviceInfoService] Exception parsing device JSON", e);
             return null;
         }
     }
@@ -1,17 +1,59 @@
 package cloud.cydc.service;
 
 import cloud.cydc.db.RawDataDao;
+import cloud.cydc.db.RawDataStore;
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.model.RollupBucket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class RawDataService {
     private static final Logger log = LoggerFactory.getLogger(RawDataService.class);
+    private static final int STREAM_FETCH_SIZE = 1000;
     private final RawDataDao dao;
     private final boolean enabled;
+    private final boolean useCopy;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetBatchMillis;
+    // Rows per transaction: grows while batches finish under the target latency, halves when slower
+    private volatile int batchSize;
+    private final int retentionDays;
+    private final int partitionDaysAhead;
+    private volatile Boolean partitioned;
+    private volatile long lastPartitionMaintenance;
+    // 0 = keep the buckets of that resolution forever
+    private final int rollupMinuteRetentionDays;
+    private final int rollupHourRetentionDays;
+    private volatile long lastRollupPrune;
+    // Aggregates per minute/hour/day of numeric values, written with the raw batches
+    private final RollupAggregator rollups = new RollupAggregator();
 
     public RawDataService(RawDataDao dao, boolean enabled) {
+        this(dao, enabled, false, 50, 5000, 50, 90, 7, 7, 365);
+    }
+
+    public RawDataService(RawDataDao dao, boolean enabled, boolean useCopy, int minBatchSize, int maxBatchSize,
+                          long targetBatchMillis, int retentionDays, int partitionDaysAhead,
+                          int rollupMinuteRetentionDays, int rollupHourRetentionDays) {
         this.dao = dao;
         this.enabled = enabled;
+        this.useCopy = useCopy;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = Math.max(minBatchSize, maxBatchSize);
+        this.targetBatchMillis = targetBatchMillis;
+        this.batchSize = minBatchSize;
+        this.retentionDays = retentionDays;
+        this.partitionDaysAhead = partitionDaysAhead;
+        this.rollupMinuteRetentionDays = rollupMinuteRetentionDays;
+        this.rollupHourRetentionDays = rollupHourRetentionDays;
     }
 
     /**
@@ -30,6 +72,217 @@ public class RawDataService {
         }
     }
 
+    /**
+     * Store a raw data point with the time it was received.
+     * Unlike {@link #storeRawData(String, long, long, String, String)} failures are thrown,
+     * so a write-behind caller can keep the row and retry.
+     */
+    public void storeRawData(String userId, long dashId, long devId, String pin, String value, long ts) {
+        if (!enabled) return;
+        dao.insert(userId, dashId, devId, pin, value, ts);
+    }
+
+    /**
+     * Store a batch in one transaction and adjust the batch size to the observed latency.
+     * Failures are thrown; nothing in the batch is stored then. When the database refuses the
+     * data itself (SQLSTATE class 22/23, e.g. a NUL byte in a text value) the exception is a
+     * {@link WriteBehindQueue.RejectedRowsException}, so the queue can single out the bad row.
+     */
+    public void storeRawDataBatch(List<RawDataPoint> points) {
+        if (!enabled || points.isEmpty()) return;
+
+        long start = System.nanoTime();
+        List<RollupBucket> closed = rollups.takeClosed(System.currentTimeMillis());
+        try {
+            dao.insertBatch(points, useCopy, closed);
+        } catch (RuntimeException e) {
+            rollups.restore(closed);
+            if (isDataError(e)) {
+                throw new WriteBehindQueue.RejectedRowsException("database rejected the rows", e);
+            }
+            // DB chậm hoặc lỗi: giảm batch để lần thử sau nhẹ hơn
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            throw e;
+        }
+        // Only committed rows are counted, a retried batch is not aggregated twice
+        rollups.add(points);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        int current = batchSize;
+        if (elapsedMs > targetBatchMillis) {
+            batchSize = Math.max(minBatchSize, current / 2);
+        } else if (points.size() >= current) {
+            // Only a full batch tells us a bigger one would help
+            batchSize = Math.min(maxBatchSize, current + minBatchSize);
+        }
+        log.debug("Stored {} raw data rows in {} ms, next batch size {}", points.size(), elapsedMs, batchSize);
+    }
+
+    /**
+     * True if the failure is about the rows (bad value, constraint), not the database being unreachable.
+     */
+    private static boolean isDataError(RuntimeException e) {
+        if (e instanceof IllegalArgumentException) {
+            return true; // e.g. a pin name the v2 layout cannot store
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                for (SQLException sql = (SQLException) t; sql != null; sql = sql.getNextException()) {
+                    String state = sql.getSQLState();
+                    if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write rollup buckets without a raw batch: the ones that have ended, or all of them (shutdown).
+     */
+    public void flushRollups(boolean all) {
+        if (!enabled) return;
+        List<RollupBucket> closed = rollups.takeClosed(all ? Long.MAX_VALUE : System.currentTimeMillis());
+        if (closed.isEmpty()) return;
+        try {
+            dao.insertBatch(List.of(), useCopy, closed);
+        } catch (Exception e) {
+            rollups.restore(closed);
+            log.error("Error writing {} rollup buckets", closed.size(), e);
+        }
+    }
+
+    /**
+     * Recount the buckets that are still open (current minute, hour and day) from the stored rows.
+     * Call once on start, after the WAL replay and before any other row is written. Only buckets
+     * that retention has not trimmed are rebuilt: their rows in raw_data_rollup (partial ones flushed
+     * at shutdown) are deleted and the full counts replace what memory holds, so nothing is counted
+     * twice and a crash does not leave holes in today's chart. Other buckets are left as they are.
+     */
+    public void rebuildOpenRollups() {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        long retainedFrom = now - retentionDays * 86_400_000L;
+        Map<Integer, Long> openFrom = new HashMap<>();
+        long since = Long.MAX_VALUE;
+        for (int res : RollupAggregator.RESOLUTIONS) {
+            long bucket = RollupAggregator.bucketStart(now, res);
+            if (bucket >= retainedFrom) {
+                openFrom.put(res, bucket);
+                since = Math.min(since, bucket);
+            }
+        }
+        if (openFrom.isEmpty()) return;
+
+        RollupAggregator rebuilt = new RollupAggregator();
+        try {
+            dao.forEachPointSince(since, STREAM_FETCH_SIZE, p -> rebuilt.addCurrent(p, now));
+            dao.deleteRollupsFrom(openFrom);
+        } catch (Exception e) {
+            log.error("Error rebuilding open rollup buckets, today's chart may miss the rows before the restart", e);
+            return;
+        }
+        List<RollupBucket> open = new ArrayList<>();
+        for (RollupBucket b : rebuilt.takeClosed(Long.MAX_VALUE)) {
+            if (openFrom.containsKey(b.getResolution())) {
+                open.add(b);
+            }
+        }
+        // Rows replayed from the WAL are already in memory and in the recount
+        rollups.replaceCurrent(openFrom.keySet(), now, open);
+        log.info("Rebuilt {} open rollup buckets from stored rows", open.size());
+    }
+
+    /**
+     * Delete minute and hour buckets older than their retention. Runs at most once an hour.
+     * @return number of buckets deleted
+     */
+    public int pruneRollups() {
+        if (!enabled) return 0;
+        long now = System.currentTimeMillis();
+        if (now - lastRollupPrune < 3600_000L) return 0;
+        lastRollupPrune = now;
+
+        int deleted = 0;
+        try {
+            if (rollupMinuteRetentionDays > 0) {
+                deleted += dao.deleteRollupsOlderThan(60, now - rollupMinuteRetentionDays * 86_400_000L);
+            }
+            if (rollupHourRetentionDays > 0) {
+                deleted += dao.deleteRollupsOlderThan(3600, now - rollupHourRetentionDays * 86_400_000L);
+            }
+            if (deleted > 0) {
+                log.info("Deleted {} expired rollup buckets", deleted);
+            }
+        } catch (Exception e) {
+            lastRollupPrune = 0; // thử lại ở lần chạy sau
+            log.error("Error deleting expired rollup buckets", e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Stream aggregates of one pin for a chart: the finest of minute/hour/day that yields at most maxPoints buckets.
+     * @return the resolution used, in seconds
+     */
+    public int streamRollups(String userId, long devId, String pin, long startTs, long endTs, int maxPoints,
+                             RawDataDao.RollupHandler handler) throws IOException {
+        int resolution = RollupAggregator.pickResolution(startTs, endTs, maxPoints);
+        if (!enabled) return resolution;
+        // Bucket chứa startTs cũng được tính
+        streamRollups(userId, devId, pin, resolution, RollupAggregator.bucketStart(startTs, resolution), endTs, handler);
+        return resolution;
+    }
+
+    /**
+     * Stream aggregates of one pin at a fixed resolution (60, 3600 or 86400 seconds), oldest first.
+     * Buckets still open in memory (the current one, or rows not written yet) are merged in.
+     * @return number of buckets streamed
+     */
+    public int streamRollups(String userId, long devId, String pin, int resolution, long startTs, long endTs,
+                             RawDataDao.RollupHandler handler) throws IOException {
+        if (!enabled) return 0;
+        List<RollupBucket> open = rollups.snapshot(userId, devId, pin, resolution, startTs, endTs);
+        int[] next = {0};
+        int[] count = {0};
+        dao.streamRollups(userId, devId, pin, resolution, startTs, endTs, (bucket, min, max, sum, n) -> {
+            while (next[0] < open.size() && open.get(next[0]).getBucket() < bucket) {
+                emit(open.get(next[0]++), handler);
+                count[0]++;
+            }
+            if (next[0] < open.size() && open.get(next[0]).getBucket() == bucket) {
+                // Một phần đã ghi, phần còn lại vẫn trong bộ nhớ
+                RollupBucket b = open.get(next[0]++);
+                handler.accept(bucket, Math.min(min, b.getMin()), Math.max(max, b.getMax()),
+                    sum + b.getSum(), n + b.getCount());
+            } else {
+                handler.accept(bucket, min, max, sum, n);
+            }
+            count[0]++;
+        });
+        while (next[0] < open.size()) {
+            emit(open.get(next[0]++), handler);
+            count[0]++;
+        }
+        return count[0];
+    }
+
+    private static void emit(RollupBucket b, RawDataDao.RollupHandler handler) throws IOException {
+        handler.accept(b.getBucket(), b.getMin(), b.getMax(), b.getSum(), b.getCount());
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Days of raw history kept (rawdata.retention.days), for both the partitioned and the plain layout.
+     */
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
     /**
      * Retrieve raw data for a device within a time range.
      * Returns JSON array of [value, timestamp, pin] tuples.
@@ -45,6 +298,17 @@ public class RawDataService {
         }
     }
     
+    /**
+     * Stream raw data of one pin in time order, resuming after the (afterTs, afterId) cursor.
+     * Errors are thrown: the caller has usually sent part of the response already.
+     * @return number of rows streamed
+     */
+    public int streamRawData(String userId, long dashId, long devId, String pin, long startTs, long endTs,
+                             long afterTs, long afterId, int limit, RawDataDao.RowHandler handler) throws IOException {
+        if (!enabled) return 0;
+        return dao.streamData(userId, dashId, devId, pin, startTs, endTs, afterTs, afterId, limit, STREAM_FETCH_SIZE, handler);
+    }
+
     /**
      * Delete pin data older than the specified timestamp.
      * @param cutoffTimestamp Delete all records where ts < cutoffTimestamp
@@ -64,19 +328,106 @@ public class RawDataService {
     }
     
     /**
-     * Delete old pin data but keep the latest record for each device/pin combination
-     * @param cutoffTimestamp Delete records older than this, but keep latest per device/pin
+     * Delete pin data older than the cutoff in chunks of chunkSize rows, stopping after maxChunks
+     * so one run stays short; the next run continues where this one stopped.
+     * The last value of every pin is kept in pin_latest, so history can be deleted freely.
      * @return Number of records deleted
      */
-    public int deleteOldDataKeepLatest(long cutoffTimestamp) {
+    public int deleteOldDataChunked(long cutoffTimestamp, int chunkSize, int maxChunks) {
         if (!enabled) return 0;
 
+        int total = 0;
         try {
-            int deleted = dao.deleteOlderThanKeepLatest(cutoffTimestamp);
-            log.info("Deleted {} old pin data records (kept latest per device/pin)", deleted);
-            return deleted;
+            for (int chunk = 1; chunk <= maxChunks; chunk++) {
+                int deleted = dao.deleteOlderThanChunk(cutoffTimestamp, chunkSize);
+                total += deleted;
+                if (deleted < chunkSize) {
+                    break;
+                }
+                if (chunk % 10 == 0) {
+                    log.info("Retention progress: {} rows deleted so far (before {})", total, cutoffTimestamp);
+                }
+                if (chunk == maxChunks) {
+                    log.info("Retention stopped after {} rows, continuing next run", total);
+                }
+            }
+            if (total > 0) {
+                log.info("Deleted {} pin data records older than timestamp {}", total, cutoffTimestamp);
+            }
+        } catch (Exception e) {
+            log.error("Error deleting old pin data after {} rows", total, e);
+        }
+        return total;
+    }
+
+    /**
+     * Last known value of a pin from pin_latest (survives retention), or null.
+     */
+    public String getLatestValue(long devId, String pin) {
+        if (!enabled) return null;
+
+        try {
+            return dao.queryLatest(devId, pin);
         } catch (Exception e) {
-            log.error("Error deleting old pin data with keep latest", e);
+            log.error("Error retrieving latest pin value", e);
+            return null;
+        }
+    }
+
+    /**
+     * Last known value of every pin of a device from pin_latest (pin name -> value), empty on error.
+     */
+    public Map<String, String> getLatestValues(long devId) {
+        if (!enabled) return Map.of();
+
+        try {
+            return dao.queryLatestAll(devId);
+        } catch (Exception e) {
+            log.error("Error retrieving latest pin values", e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * True if raw_data is partitioned by day, checked once.
+     */
+    public boolean isPartitioned() {
+        if (!enabled) return false;
+        if (partitioned == null) {
+            try {
+                partitioned = dao.isPartitioned();
+            } catch (Exception e) {
+                log.error("Error checking raw_data partitioning", e);
+                return false;
+            }
+        }
+        return partitioned;
+    }
+
+    /**
+     * Create the partitions for the coming days and drop those older than the retention period.
+     * Runs at most once an hour; dropping a partition is a catalog change, no rows are deleted one by one.
+     * @return number of partitions dropped
+     */
+    public int maintainPartitions() {
+        if (!isPartitioned()) return 0;
+        long now = System.currentTimeMillis();
+        if (now - lastPartitionMaintenance < 3600_000L) return 0;
+        lastPartitionMaintenance = now;
+
+        try {
+            int created = dao.createPartitions(now, partitionDaysAhead + 1);
+            if (created > 0) {
+                log.info("Created {} raw_data partitions ahead", created);
+            }
+            List<String> dropped = dao.dropPartitionsBefore(now - retentionDays * 86_400_000L);
+            if (!dropped.isEmpty()) {
+                log.info("Dropped {} expired raw_data partitions: {}", dropped.size(), dropped);
+            }
+            return dropped.size();
+        } catch (Exception e) {
+            lastPartitionMaintenance = 0; // thử lại ở lần chạy sau
+            log.error("Error maintaining raw_data partitions", e);
             return 0;
         }
     }
@@ -84,4 +435,19 @@ public class RawDataService {
     public boolean isEnabled() {
         return enabled;
     }
+
+    /**
+     * Stats of the sample store, or null when raw samples live in raw_data.
+     */
+    public Map<String, Object> getStoreStats() {
+        RawDataStore store = dao.getStore();
+        return store != null ? store.getStats() : null;
+    }
+
+    public void close() {
+        RawDataStore store = dao.getStore();
+        if (store != null) {
+            store.close();
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package cloud.cydc.service;
+
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.model.RollupBucket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running min/max/sum/count per device/pin for minute, hour and day buckets.
+ * Rows are added after their raw_data batch committed; buckets that have ended are taken out
+ * and written with the next batch. The rollup upsert merges into existing rows, so a late row
+ * for an already written bucket just adds a second partial aggregate.
+ * Values that are not numbers are ignored.
+ */
+public class RollupAggregator {
+    public static final int[] RESOLUTIONS = {60, 3600, 86400};
+
+    private static final class Agg {
+        final String userId;
+        final long dashId;
+        final long devId;
+        final String pin;
+        final int resolution;
+        final long bucket;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        long count;
+
+        Agg(String userId, long dashId, long devId, String pin, int resolution, long bucket) {
+            this.userId = userId;
+            this.dashId = dashId;
+            this.devId = devId;
+            this.pin = pin;
+            this.resolution = resolution;
+            this.bucket = bucket;
+        }
+
+        void add(double min, double max, double sum, long count) {
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.sum += sum;
+            this.count += count;
+        }
+
+        RollupBucket toBucket() {
+            return new RollupBucket(userId, dashId, devId, pin, resolution, bucket, min, max, sum, count);
+        }
+    }
+
+    private final Map<String, Agg> open = new HashMap<>();
+
+    public synchronized void add(List<RawDataPoint> points) {
+        for (RawDataPoint p : points) {
+            double v = p.numericValue();
+            if (Double.isNaN(v)) {
+                continue;
+            }
+            for (int res : RESOLUTIONS) {
+                agg(p.getUserId(), p.getDashId(), p.getDevId(), p.getPin(), res, bucketStart(p.getTs(), res))
+                    .add(v, v, v, 1);
+            }
+        }
+    }
+
+    /**
+     * Count a stored row only in the buckets that contain now, i.e. the ones still open.
+     * Used to rebuild them after a restart; rows of buckets that have ended are already in the table.
+     */
+    public synchronized void addCurrent(RawDataPoint p, long now) {
+        double v = p.numericValue();
+        if (Double.isNaN(v)) {
+            return;
+        }
+        for (int res : RESOLUTIONS) {
+            long bucket = bucketStart(p.getTs(), res);
+            if (bucket == bucketStart(now, res)) {
+                agg(p.getUserId(), p.getDashId(), p.getDevId(), p.getPin(), res, bucket).add(v, v, v, 1);
+            }
+        }
+    }
+
+    /**
+     * Remove and return every bucket that ended at or before now (all buckets if now is Long.MAX_VALUE).
+     */
+    public synchronized List<RollupBucket> takeClosed(long now) {
+        List<RollupBucket> closed = new ArrayList<>();
+        Iterator<Agg> it = open.values().iterator();
+        while (it.hasNext()) {
+            Agg a = it.next();
+            if (now == Long.MAX_VALUE || a.bucket + a.resolution * 1000L <= now) {
+                closed.add(a.toBucket());
+                it.remove();
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Drop the buckets of the given resolutions that contain now and put the given ones in their place.
+     */
+    public synchronized void replaceCurrent(Collection<Integer> resolutions, long now, List<RollupBucket> buckets) {
+        open.values().removeIf(a -> resolutions.contains(a.resolution) && a.bucket == bucketStart(now, a.resolution));
+        restore(buckets);
+    }
+
+    /**
+     * Put buckets back after the transaction that should have written them failed.
+     */
+    public synchronized void restore(List<RollupBucket> buckets) {
+        for (RollupBucket b : buckets) {
+            agg(b.getUserId(), b.getDashId(), b.getDevId(), b.getPin(), b.getResolution(), b.getBucket())
+                .add(b.getMin(), b.getMax(), b.getSum(), b.getCount());
+        }
+    }
+
+    /**
+     * Copy of the open buckets of one device pin at one resolution with from <= bucket <= to, oldest first.
+     * Readers merge them into the table rows so the current minute/hour/day shows up before it is written.
+     */
+    public synchronized List<RollupBucket> snapshot(String userId, long devId, String pin, int resolution,
+                                                    long from, long to) {
+        List<RollupBucket> buckets = new ArrayList<>();
+        long size = resolution * 1000L;
+        for (long bucket = bucketStart(from, resolution); bucket <= to; bucket += size) {
+            Agg a = open.get(devId + ":" + pin + ":" + resolution + ":" + bucket);
+            if (a != null && a.userId.equals(userId) && bucket >= from) {
+                buckets.add(a.toBucket());
+            }
+        }
+        return buckets;
+    }
+
+    public synchronized int openBuckets() {
+        return open.size();
+    }
+
+    public static long bucketStart(long ts, int resolution) {
+        long size = resolution * 1000L;
+        return Math.floorDiv(ts, size) * size;
+    }
+
+    /**
+     * Finest resolution that returns at most maxPoints buckets for the range; day buckets otherwise.
+     */
+    public static int pickResolution(long from, long to, int maxPoints) {
+        long range = Math.max(0, to - from);
+        for (int res : RESOLUTIONS) {
+            if (range / (res * 1000L) <= maxPoints) {
+                return res;
+            }
+        }
+        return RESOLUTIONS[RESOLUTIONS.length - 1];
+    }
+
+    private Agg agg(String userId, long dashId, long devId, String pin, int res, long bucket) {
+        String key = devId + ":" + pin + ":" + res + ":" + bucket;
+        return open.computeIfAbsent(key, k -> new Agg(userId, dashId, devId, pin, res, bucket));
+    }
+}
@@ -1,70 +1,79 @@
 package cloud.cydc.service;
 
 import cloud.cydc.blynk.BlynkProtocolHandler;
-import cloud.cydc.cache.RedisClientManager;
+import cloud.cydc.cache.PinStateStore;
 import cloud.cydc.websocket.WebSocketFrameHandler;
-import io.lettuce.core.api.sync.RedisCommands;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VirtualPinService {
     private static final Logger log = LoggerFactory.getLogger(VirtualPinService.class);
-    private static final String PIN_KEY_PREFIX = "pin:";
-    private static final String DEVICE_ACTIVITY_PREFIX = "device:activity:";
+    public static final int MAX_PINS = PinStateStore.MAX_PINS;
+    private static final int CLEANUP_BATCH_SIZE = 500;
     private static final int DEVICE_INACTIVE_THRESHOLD_SEC = 15; // 5 minutes
     private static final int DEVICE_CLEANUP_THRESHOLD_SEC = 60; // 30 minutes
-    private static final int SYNC_BATCH_SIZE = 100;
-    private static final long DATA_RETENTION_DAYS = 90; // 3 months = 90 days
-    private static final long DATA_RETENTION_MS = 60 * 1000L; // TEST: 1 minute for testing
+    private static final int RETENTION_CHUNK_SIZE = 5000;
+    private static final int RETENTION_MAX_CHUNKS = 200;
     
     private final RawDataService rawDataService;
     private final ScheduledExecutorService scheduler;
     private final ExecutorService syncExecutor; // Dedicated thread pool for DB sync
-    private final ConcurrentHashMap<Long, Queue<PinUpdate>> pendingWrites;
+    private final ScheduledExecutorService flushExecutor; // Write-behind của pin state vào Redis
+    private final PinStateStore pinStore;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // Pin updates chờ ghi vào DB (bounded ring, một consumer duy nhất)
+    private final WriteBehindQueue writeQueue;
     private final int syncIntervalSeconds;
     private final int syncThreshold;
-    private volatile boolean isSyncing = false; // Prevent concurrent syncs
-    
-    private static class PinUpdate {
-        final String userId;
-        final long dashId;
-        final long devId;
-        final int pinNum;
-        final String value;
-        final long timestamp;
-        
-        PinUpdate(String userId, long dashId, long devId, int pinNum, String value) {
-            this.userId = userId;
-            this.dashId = dashId;
-            this.devId = devId;
-            this.pinNum = pinNum;
-            this.value = value;
-            this.timestamp = System.currentTimeMillis();
-        }
-    }
+    private final AtomicBoolean isSyncing = new AtomicBoolean(); // Prevent concurrent syncs
 
     public VirtualPinService(RawDataService rawDataService, int syncIntervalSeconds, int syncThreshold) {
+        this(rawDataService, syncIntervalSeconds, syncThreshold, 100);
+    }
+
+    public VirtualPinService(RawDataService rawDataService, int syncIntervalSeconds, int syncThreshold, long flushIntervalMs) {
+        this(rawDataService, syncIntervalSeconds, syncThreshold, flushIntervalMs, PinStateStore.Layout.KEYS);
+    }
+
+    public VirtualPinService(RawDataService rawDataService, int syncIntervalSeconds, int syncThreshold, long flushIntervalMs,
+                             PinStateStore.Layout redisLayout) {
+        this(rawDataService, syncIntervalSeconds, syncThreshold, flushIntervalMs, redisLayout, new WriteBehindQueue(65536));
+    }
+
+    public VirtualPinService(RawDataService rawDataService, int syncIntervalSeconds, int syncThreshold, long flushIntervalMs,
+                             PinStateStore.Layout redisLayout, WriteBehindQueue writeQueue) {
         this.rawDataService = rawDataService;
-        this.pendingWrites = new ConcurrentHashMap<>();
+        this.writeQueue = writeQueue;
+        // Pin values live in memory; Redis keys keep the old TTLs: 24h while active, short when idle
+        this.pinStore = new PinStateStore(redisLayout, 86400, DEVICE_CLEANUP_THRESHOLD_SEC, DEVICE_INACTIVE_THRESHOLD_SEC * 1000L);
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pin-flush");
+            t.setDaemon(true);
+            return t;
+        });
         this.scheduler = Executors.newScheduledThreadPool(2);
         this.syncExecutor = Executors.newSingleThreadExecutor(); // Single thread for DB sync to avoid race conditions
         this.syncIntervalSeconds = syncIntervalSeconds;
         this.syncThreshold = syncThreshold;
         
+        // Ghi các pin đã thay đổi vào Redis theo batch
+        flushExecutor.scheduleWithFixedDelay(this::flushPinState, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        
         // Định kỳ sync dữ liệu từ Redis vào DB (theo config)
         scheduler.scheduleAtFixedRate(this::syncPendingWritesToDB, syncIntervalSeconds, syncIntervalSeconds, TimeUnit.SECONDS);
         
         // Định kỳ cleanup các device không hoạt động (mỗi 5 phút)
         scheduler.scheduleAtFixedRate(this::cleanupInactiveDevices, 300, 300, TimeUnit.SECONDS);
         
-        // TEST: Xóa dữ liệu pin cũ hơn 1 phút (chạy ngay sau 10 giây, lặp lại mỗi 30 giây)
+        // Xóa dữ liệu pin cũ hơn rawdata.retention.days (chạy sau 10 giây, lặp lại mỗi 30 giây, theo chunk)
         scheduler.scheduleAtFixedRate(this::cleanupOldPinData, 10, 30, TimeUnit.SECONDS);
         
-        log.info("VirtualPinService initialized: sync interval={}s, threshold={} writes, 1-MINUTE test data retention", 
-                 syncIntervalSeconds, syncThreshold);
+        log.info("VirtualPinService initialized: sync interval={}s, threshold={} writes, data retention={} days", 
+                 syncIntervalSeconds, syncThreshold, rawDataService != null ? rawDataService.getRetentionDays() : 0);
     }
 
     public VirtualPinService(RawDataService rawDataService) {
@@ -79,35 +88,41 @@ public class VirtualPinService {
      * Cập nhật activity timestamp của device
      */
     private void touchDeviceActivity(long deviceId) {
-        String key = DEVICE_ACTIVITY_PREFIX + deviceId;
-        RedisCommands<String, String> sync = RedisClientManager.sync();
-        sync.set(key, String.valueOf(System.currentTimeMillis()));
-        sync.expire(key, DEVICE_CLEANUP_THRESHOLD_SEC);
+        pinStore.touch(deviceId);
     }
     
     /**
-     * Kiểm tra device có active không (trong 5 phút gần đây)
+     * Ghi các thay đổi pin đang chờ vào Redis (chạy trên thread pin-flush)
      */
-    private boolean isDeviceActive(long deviceId) {
-        String key = DEVICE_ACTIVITY_PREFIX + deviceId;
-        String lastActivityStr = RedisClientManager.sync().get(key);
-        if (lastActivityStr == null) return false;
-        
-        long lastActivity = Long.parseLong(lastActivityStr);
-        long now = System.currentTimeMillis();
-        return (now - lastActivity) < (DEVICE_INACTIVE_THRESHOLD_SEC * 1000);
+    private void flushPinState() {
+        flushRequested.set(false);
+        try {
+            pinStore.flush();
+        } catch (Exception e) {
+            log.error("Error flushing pin state to Redis", e);
+        }
     }
 
-    public void setPinValue(long deviceId, int pinNum, String value) {
-        String key = PIN_KEY_PREFIX + deviceId + ":V" + pinNum;
-        RedisCommands<String, String> sync = RedisClientManager.sync();
-        sync.set(key, value);
-        
-        // Set TTL dựa trên activity: active = 24h, inactive = 30 phút
-        int ttl = isDeviceActive(deviceId) ? 86400 : DEVICE_CLEANUP_THRESHOLD_SEC;
-        sync.expire(key, ttl);
-        
+    /**
+     * Flush ngay thay vì chờ chu kỳ kế tiếp (dùng khi caller đang chờ Redis xác nhận)
+     */
+    public void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(this::flushPinState);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return completes when the value has been written to Redis
+     */
+    public CompletableFuture<Void> setPinValue(long deviceId, int pinNum, String value) {
+        // TTL trong Redis (active = 24h, inactive = ngắn) được áp dụng khi flush
         touchDeviceActivity(deviceId);
+        return pinStore.set(deviceId, pinNum, value);
     }
 
     public void setPinValueWithBroadcast(String userId, String deviceId, int pinNum, String value) {
@@ -115,30 +130,57 @@ public class VirtualPinService {
     }
     
     public void setPinValueWithBroadcast(String userId, String deviceId, int pinNum, String value, long excludeDeviceId) {
-        long devId = Long.parseLong(deviceId);
-        setPinValue(devId, pinNum, value);
+        setPinValueWithBroadcast(userId, 0, Long.parseLong(deviceId), pinNum, value, excludeDeviceId);
+    }
+    
+    /**
+     * @return completes when the value has been written to Redis
+     */
+    public CompletableFuture<Void> setPinValueWithBroadcast(String userId, long dashId, long devId, int pinNum, String value, long excludeDeviceId) {
+        return setPinValueWithBroadcast(userId, dashId, devId, pinNum, value, excludeDeviceId, true);
+    }
+
+    /**
+     * Same as {@link #setPinValueWithBroadcast(String, long, long, int, String, long)} for callers on a
+     * Netty event loop: never waits for room in the write-behind queue.
+     * @return null if the queue is full; nothing is written then
+     */
+    public CompletableFuture<Void> trySetPinValueWithBroadcast(String userId, long dashId, long devId, int pinNum, String value, long excludeDeviceId) {
+        if (rawDataService != null && rawDataService.isEnabled() && !writeQueue.hasRoom()) {
+            return null;
+        }
+        return setPinValueWithBroadcast(userId, dashId, devId, pinNum, value, excludeDeviceId, false);
+    }
+
+    private CompletableFuture<Void> setPinValueWithBroadcast(String userId, long dashId, long devId, int pinNum, String value,
+                                                             long excludeDeviceId, boolean mayBlock) {
+        CompletableFuture<Void> persisted = setPinValue(devId, pinNum, value);
         
         // Broadcast pin update to all subscribed WebSocket clients
-        WebSocketFrameHandler.broadcastPinUpdate(userId, deviceId, "V" + pinNum, value);
+        WebSocketFrameHandler.broadcastPinUpdate(userId, String.valueOf(devId), "V" + pinNum, value);
         
         // Push to connected ESP32 via Blynk protocol (skip source device to prevent echo loop)
         BlynkProtocolHandler.sendHardwareCommand(devId, pinNum, value, excludeDeviceId);
         
         // Queue để sync vào DB sau (batch write)
         if (rawDataService != null && rawDataService.isEnabled()) {
-            PinUpdate update = new PinUpdate(userId, 0, devId, pinNum, value);
-            pendingWrites.computeIfAbsent(devId, k -> new ConcurrentLinkedQueue<>()).offer(update);
+            long ts = System.currentTimeMillis();
+            boolean queued = mayBlock ? writeQueue.offer(userId, dashId, devId, pinNum, value, ts)
+                : writeQueue.offerNow(userId, dashId, devId, pinNum, value, ts);
+            if (!queued) {
+                log.warn("Write-behind queue full, dropped DB row for device {} V{}", devId, pinNum);
+            }
             log.debug("Queued pin update for DB sync: device={}, pin=V{}, value={}", devId, pinNum, value);
             
             // Auto-sync nếu đạt threshold
             checkAndAutoSync();
         }
         
-        touchDeviceActivity(devId);
+        return persisted;
     }
 
     public void setPinValueWithBroadcastAndRawData(String userId, long dashId, long devId, int pinNum, String value) {
-        // Ghi vào Redis ngay lập tức
+        // Ghi vào pin store (Redis được cập nhật ở lần flush kế tiếp)
         setPinValue(devId, pinNum, value);
         
         // Broadcast đến WebSocket clients
@@ -146,8 +188,9 @@ public class VirtualPinService {
         
         // Queue để sync vào DB sau (batch write)
         if (rawDataService != null && rawDataService.isEnabled()) {
-            PinUpdate update = new PinUpdate(userId, dashId, devId, pinNum, value);
-            pendingWrites.computeIfAbsent(devId, k -> new ConcurrentLinkedQueue<>()).offer(update);
+            if (!writeQueue.offer(userId, dashId, devId, pinNum, value, System.currentTimeMillis())) {
+                log.warn("Write-behind queue full, dropped DB row for device {} V{}", devId, pinNum);
+            }
             
             // Auto-sync nếu đạt threshold
             checkAndAutoSync();
@@ -161,13 +204,10 @@ public class VirtualPinService {
      * Chạy trong thread riêng để không ảnh hưởng ESP32 read/write
      */
     private void checkAndAutoSync() {
-        int totalPending = 0;
-        for (Queue<PinUpdate> queue : pendingWrites.values()) {
-            totalPending += queue.size();
-        }
+        int totalPending = writeQueue.size();
         
         if (totalPending >= syncThreshold) {
-            if (!isSyncing) {
+            if (!isSyncing.get()) {
                 log.info("Auto-sync triggered: {} pending writes >= {} threshold", totalPending, syncThreshold);
                 triggerAsyncSync();
             } else {
@@ -196,59 +236,41 @@ public class VirtualPinService {
     private void syncPendingWritesToDB() {
         if (rawDataService == null || !rawDataService.isEnabled()) return;
         
-        // Prevent concurrent syncs
-        if (isSyncing) {
+        // Prevent concurrent syncs (the queue has a single consumer)
+        if (!isSyncing.compareAndSet(false, true)) {
             log.debug("Sync already in progress, skipping");
             return;
         }
         
-        isSyncing = true;
+        int totalSynced = 0;
         try {
-            int totalSynced = 0;
-            List<Long> emptyDevices = new ArrayList<>();
+            log.info("Starting pin data sync, pending writes: {}", writeQueue.size());
             
-            log.info("Starting pin data sync, pending devices: {}", pendingWrites.size());
+            // Mỗi batch là một transaction; kích thước batch tự điều chỉnh theo độ trễ DB
+            int count;
+            int batchSize;
+            do {
+                batchSize = rawDataService.getBatchSize();
+                count = writeQueue.drainBatch(rawDataService::storeRawDataBatch, batchSize);
+                totalSynced += count;
+                // Mỗi transaction đã commit: không replay lại từ WAL nếu process bị kill giữa chừng
+                writeQueue.checkpoint();
+            } while (count == batchSize);
             
-            for (Map.Entry<Long, Queue<PinUpdate>> entry : pendingWrites.entrySet()) {
-                Queue<PinUpdate> queue = entry.getValue();
-                if (queue.isEmpty()) {
-                    emptyDevices.add(entry.getKey());
-                    continue;
-                }
-                
-                log.info("Syncing device {} with {} pending updates", entry.getKey(), queue.size());
-                
-                // Batch sync tối đa SYNC_BATCH_SIZE records mỗi device
-                int count = 0;
-                PinUpdate update;
-                while ((update = queue.poll()) != null && count < SYNC_BATCH_SIZE) {
-                    try {
-                        rawDataService.storeRawData(
-                            update.userId, 
-                            update.dashId, 
-                            update.devId, 
-                            "V" + update.pinNum, 
-                            update.value
-                        );
-                        totalSynced++;
-                        count++;
-                        log.debug("Stored to DB: device={}, pin=V{}, value={}", update.devId, update.pinNum, update.value);
-                    } catch (Exception e) {
-                        log.error("Failed to sync pin data for device {}: {}", update.devId, e.getMessage(), e);
-                    }
-                }
-            }
-            
-            // Cleanup empty queues
-            emptyDevices.forEach(pendingWrites::remove);
+            // Bucket rollup đã đóng nhưng không có row mới đi kèm
+            rawDataService.flushRollups(false);
             
             if (totalSynced > 0) {
                 log.info("Successfully synced {} pin updates to database", totalSynced);
             }
         } catch (Exception e) {
-            log.error("Error during pin data sync: {}", e.getMessage(), e);
+            // Row lỗi vẫn nằm trong queue, sẽ thử lại ở lần sync sau
+            log.error("Error during pin data sync after {} rows, {} kept for retry: {}",
+                totalSynced, writeQueue.size(), e.getMessage());
         } finally {
-            isSyncing = false;
+            // Rows committed before a failed batch are not replayed from the WAL either
+            writeQueue.checkpoint();
+            isSyncing.set(false);
         }
     }
     
@@ -257,43 +279,31 @@ public class VirtualPinService {
      */
     private void cleanupInactiveDevices() {
         try {
-            RedisCommands<String, String> sync = RedisClientManager.sync();
-            List<String> activityKeys = sync.keys(DEVICE_ACTIVITY_PREFIX + "*");
-            
             int cleaned = 0;
-            long now = System.currentTimeMillis();
+            // Chỉ lấy các device đã quá hạn từ activity index (ZRANGEBYSCORE), không quét keyspace
+            long cutoff = System.currentTimeMillis() - DEVICE_CLEANUP_THRESHOLD_SEC * 1000L;
             
-            for (String activityKey : activityKeys) {
-                String lastActivityStr = sync.get(activityKey);
-                if (lastActivityStr == null) continue;
-                
-                long lastActivity = Long.parseLong(lastActivityStr);
-                long inactiveDuration = (now - lastActivity) / 1000; // seconds
-                
-                // Nếu device không hoạt động quá 30 phút, xóa tất cả pin data
-                if (inactiveDuration > DEVICE_CLEANUP_THRESHOLD_SEC) {
-                    String deviceIdStr = activityKey.substring(DEVICE_ACTIVITY_PREFIX.length());
-                    long deviceId = Long.parseLong(deviceIdStr);
-                    
-                    // Xóa tất cả pin keys của device này
-                    List<String> pinKeys = sync.keys(PIN_KEY_PREFIX + deviceId + ":*");
-                    if (!pinKeys.isEmpty()) {
-                        sync.del(pinKeys.toArray(new String[0]));
-                        cleaned += pinKeys.size();
-                    }
-                    
-                    // Xóa activity key
-                    sync.del(activityKey);
-                    
-                    // Xóa pending writes queue
-                    pendingWrites.remove(deviceId);
-                    
-                    log.info("Cleaned up {} pin keys for inactive device {}", pinKeys.size(), deviceId);
+            List<Long> inactive;
+            do {
+                inactive = pinStore.findInactive(cutoff, CLEANUP_BATCH_SIZE);
+                for (long deviceId : inactive) {
+                    // Xóa tất cả pin data của device này
+                    pinStore.removeDevice(deviceId);
+                    pinStore.deleteFromRedis(deviceId);
+                    cleaned++;
+                    log.info("Cleaned up pin data for inactive device {}", deviceId);
                 }
-            }
+                pinStore.removeActivity(inactive);
+            } while (inactive.size() == CLEANUP_BATCH_SIZE);
             
             if (cleaned > 0) {
-                log.info("Total cleaned {} keys from inactive devices", cleaned);
+                log.info("Total cleaned pin data of {} inactive devices", cleaned);
+            }
+            
+            // Giải phóng bộ nhớ của các device không còn hoạt động (sẽ load lại từ Redis khi cần)
+            int evicted = pinStore.evictIdle(DEVICE_CLEANUP_THRESHOLD_SEC * 1000L).size();
+            if (evicted > 0) {
+                log.info("Evicted {} idle devices from pin state memory", evicted);
             }
         } catch (Exception e) {
             log.error("Error during device cleanup: {}", e.getMessage(), e);
@@ -320,23 +330,34 @@ public class VirtualPinService {
     }
     
     /**
-     * Delete pin data older than 1 minute from database, keep latest record per device/pin
+     * Delete pin data older than rawdata.retention.days from database (latest value per device/pin stays in pin_latest)
      */
     private void cleanupOldPinData() {
         if (rawDataService == null || !rawDataService.isEnabled()) {
             return;
         }
         
+        rawDataService.pruneRollups();
+        
+        if (rawDataService.isPartitioned()) {
+            // Retention theo partition: drop cả ngày đã hết hạn thay vì DELETE từng row
+            rawDataService.maintainPartitions();
+            return;
+        }
+        
         try {
-            long cutoffTime = System.currentTimeMillis() - DATA_RETENTION_MS;
-            log.info("TEST: Starting cleanup of pin data older than 1 minute (before timestamp: {})", cutoffTime);
+            // Same retention as the partitioned layout
+            long cutoffTime = System.currentTimeMillis() - rawDataService.getRetentionDays() * 86_400_000L;
+            log.debug("Starting cleanup of pin data older than {} days (before timestamp: {})",
+                rawDataService.getRetentionDays(), cutoffTime);
             
-            int deleted = rawDataService.deleteOldDataKeepLatest(cutoffTime);
+            // Xóa theo chunk nhỏ dựa trên index ts, không quét cả bảng
+            int deleted = rawDataService.deleteOldDataChunked(cutoffTime, RETENTION_CHUNK_SIZE, RETENTION_MAX_CHUNKS);
             
             if (deleted > 0) {
-                log.info("TEST: Deleted {} old pin data records (older than 1 minute, kept latest per device/pin)", deleted);
+                log.info("Deleted {} old pin data records (older than {} days)", deleted, rawDataService.getRetentionDays());
             } else {
-                log.debug("TEST: No old pin data to delete");
+                log.debug("No old pin data to delete");
             }
         } catch (Exception e) {
             log.error("Error during old pin data cleanup", e);
@@ -344,36 +365,92 @@ public class VirtualPinService {
     }
 
     public String getPinValue(long deviceId, int pinNum) {
-        String key = PIN_KEY_PREFIX + deviceId + ":V" + pinNum;
         touchDeviceActivity(deviceId);
-        return RedisClientManager.sync().get(key);
+        return pinStore.get(deviceId, pinNum);
+    }
+
+    /**
+     * Same as {@link #getPinValue}, falling back to pin_latest when Redis no longer has the pin
+     * (its TTL expired). May query the database: not for Netty event loop threads.
+     */
+    public String getPinValueOrLatest(long deviceId, int pinNum) {
+        String value = getPinValue(deviceId, pinNum);
+        if (value == null && rawDataService != null && rawDataService.isEnabled()) {
+            value = rawDataService.getLatestValue(deviceId, "V" + pinNum);
+            if (value != null) {
+                pinStore.fillIfAbsent(deviceId, pinNum, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Same as {@link #getAllPinValues}, with missing pins filled from pin_latest (one query).
+     * May query the database: not for Netty event loop threads.
+     */
+    public String[] getAllPinValuesOrLatest(long deviceId) {
+        String[] values = getAllPinValues(deviceId);
+        if (rawDataService == null || !rawDataService.isEnabled()) {
+            return values;
+        }
+        for (String v : values) {
+            if (v != null) {
+                return values; // the device is still in Redis
+            }
+        }
+        for (Map.Entry<String, String> e : rawDataService.getLatestValues(deviceId).entrySet()) {
+            String pin = e.getKey();
+            if (pin.length() < 2 || pin.charAt(0) != 'V') continue;
+            try {
+                int pinNum = Integer.parseInt(pin.substring(1));
+                if (pinNum >= 0 && pinNum < MAX_PINS) {
+                    values[pinNum] = e.getValue();
+                    pinStore.fillIfAbsent(deviceId, pinNum, e.getValue());
+                }
+            } catch (NumberFormatException ignored) {
+                // not a virtual pin
+            }
+        }
+        return values;
     }
 
     public void deletePinValue(long deviceId, int pinNum) {
-        String key = PIN_KEY_PREFIX + deviceId + ":V" + pinNum;
-        RedisClientManager.sync().del(key);
+        pinStore.remove(deviceId, pinNum);
     }
     
     /**
      * Xóa tất cả pin data của device (khi device bị xóa)
      */
     public void deleteAllPins(long deviceId) {
-        RedisCommands<String, String> sync = RedisClientManager.sync();
-        List<String> keys = sync.keys(PIN_KEY_PREFIX + deviceId + ":*");
-        if (!keys.isEmpty()) {
-            sync.del(keys.toArray(new String[0]));
-        }
-        sync.del(DEVICE_ACTIVITY_PREFIX + deviceId);
-        pendingWrites.remove(deviceId);
+        pinStore.removeDevice(deviceId);
+        pinStore.deleteFromRedis(deviceId);
+        pinStore.removeActivity(List.of(deviceId));
         log.info("Deleted all pin data for device {}", deviceId);
     }
 
+    /**
+     * Chuyển toàn bộ pin keys kiểu cũ (pin:<dev>:V<n>) sang hash pins:<dev>
+     * Dùng SCAN nên có thể chạy trong khi server đang hoạt động
+     */
+    public int migrateLegacyPinKeys() {
+        return pinStore.migrateAll();
+    }
+
+    /**
+     * Đọc tất cả pin values của device từ bộ nhớ (một lệnh MGET/HGETALL nếu device chưa được load)
+     * @return array indexed by pin number, null = no value stored
+     */
+    public String[] getAllPinValues(long deviceId) {
+        touchDeviceActivity(deviceId);
+        return pinStore.getAll(deviceId);
+    }
+
     public String getAllPinsJson(long deviceId) {
         StringBuilder sb = new StringBuilder("{");
-        touchDeviceActivity(deviceId);
+        String[] values = getAllPinValues(deviceId);
         
-        for (int i = 0; i < 128; i++) {
-            String val = getPinValue(deviceId, i);
+        for (int i = 0; i < MAX_PINS; i++) {
+            String val = values[i];
             if (val != null) {
                 if (sb.length() > 1) sb.append(",");
                 sb.append("\"V").append(i).append("\":\"").append(val).append("\"");
@@ -412,6 +489,20 @@ public class VirtualPinService {
     public void shutdown() {
         log.info("Shutting down VirtualPinService...");
         forceSync();
+        writeQueue.close();
+        if (rawDataService != null) {
+            // Bucket đang mở được ghi dạng partial, upsert sẽ cộng dồn khi khởi động lại
+            rawDataService.flushRollups(true);
+        }
+        
+        // Ghi nốt pin state còn lại vào Redis
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushPinState();
         
         // Shutdown schedulers
         scheduler.shutdown();
@@ -428,6 +519,9 @@ public class VirtualPinService {
             scheduler.shutdownNow();
             syncExecutor.shutdownNow();
         }
+        if (rawDataService != null) {
+            rawDataService.close();
+        }
         log.info("VirtualPinService shutdown complete");
     }
     
@@ -436,21 +530,18 @@ public class VirtualPinService {
      */
     public Map<String, Object> getStats() {
         Map<String, Object> stats = new HashMap<>();
-        stats.put("pendingDevices", pendingWrites.size());
-        
-        int totalPending = 0;
-        for (Queue<PinUpdate> queue : pendingWrites.values()) {
-            totalPending += queue.size();
+        stats.put("totalPendingWrites", writeQueue.size());
+        stats.put("writeQueue", writeQueue.getStats());
+        stats.put("pinStore", pinStore.getStats());
+        if (rawDataService != null && rawDataService.getStoreStats() != null) {
+            stats.put("sampleStore", rawDataService.getStoreStats());
         }
-        stats.put("totalPendingWrites", totalPending);
         
         try {
-            RedisCommands<String, String> sync = RedisClientManager.sync();
-            List<String> activityKeys = sync.keys(DEVICE_ACTIVITY_PREFIX + "*");
-            stats.put("activeDevices", activityKeys.size());
-            
-            List<String> pinKeys = sync.keys(PIN_KEY_PREFIX + "*");
-            stats.put("totalPinKeys", pinKeys.size());
+            // O(log N) lookups on the activity index instead of KEYS scans
+            long since = System.currentTimeMillis() - DEVICE_CLEANUP_THRESHOLD_SEC * 1000L;
+            stats.put("activeDevices", pinStore.countActiveSince(since));
+            stats.put("trackedDevices", pinStore.trackedDevices());
         } catch (Exception e) {
             stats.put("error", e.getMessage());
         }
@@ -0,0 +1,347 @@
+package cloud.cydc.service;
+
+import cloud.cydc.model.RawDataPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of raw-data rows that are waiting for the database.
+ * Each segment (wal-&lt;first lsn&gt;.log) is preallocated and memory-mapped; a record is
+ * [int length][int crc][long lsn][payload], and a zero length marks the end of the written part.
+ * Records are in the page cache as soon as append returns, so a killed process loses nothing;
+ * with fsync enabled, sync() also forces them to disk, one msync covering every writer that is waiting (group commit).
+ * checkpoint() stores the last lsn that reached the database and deletes segments that are fully behind it.
+ */
+public class WriteAheadLog {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path dir;
+    private final long segmentSize;
+    private final boolean fsync;
+
+    // Append state, guarded by this
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final List<Long> segmentStarts = new ArrayList<>();
+    private MappedByteBuffer mapped;
+    private int writePos;
+    private long nextLsn;
+
+    // Group commit: one writer forces the segment, everyone up to syncedLsn is covered
+    private final Object syncLock = new Object();
+    private volatile long syncedLsn;
+    private volatile long checkpointLsn;
+    private long syncCount;
+
+    public WriteAheadLog(Path dir, long segmentSize, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        this.checkpointLsn = readCheckpoint();
+        this.nextLsn = checkpointLsn + 1;
+        try (var files = Files.list(dir)) {
+            files.map(WriteAheadLog::segmentStart).filter(s -> s >= 0).sorted().forEach(segmentStarts::add);
+        }
+    }
+
+    /**
+     * Feed every record after the checkpoint to the sink (in lsn order), then start a fresh segment.
+     * Must be called once before the first append. If the sink throws, the segments are left untouched.
+     * @return number of records replayed
+     */
+    public synchronized int replay(WriteBehindQueue.Sink sink) throws Exception {
+        return replay(sink, () -> { });
+    }
+
+    /**
+     * Same as {@link #replay(WriteBehindQueue.Sink)}, handing the rows over in batches of at most
+     * batchSize (pin as "V" + number). The last batch is stored before the checkpoint moves.
+     */
+    public synchronized int replay(WriteBehindQueue.BatchSink sink, int batchSize) throws Exception {
+        List<RawDataPoint> batch = new ArrayList<>();
+        return replay((userId, dashId, devId, pin, value, ts) -> {
+            batch.add(new RawDataPoint(userId, dashId, devId, "V" + pin, value, ts));
+            if (batch.size() >= batchSize) {
+                store(sink, new ArrayList<>(batch));
+                batch.clear();
+            }
+        }, () -> {
+            if (!batch.isEmpty()) {
+                store(sink, batch);
+            }
+        });
+    }
+
+    /**
+     * A row the database refuses would otherwise stop every start; drop it like the queue does.
+     */
+    private static void store(WriteBehindQueue.BatchSink sink, List<RawDataPoint> batch) throws Exception {
+        try {
+            sink.accept(batch);
+        } catch (WriteBehindQueue.RejectedRowsException e) {
+            for (RawDataPoint row : batch) {
+                try {
+                    sink.accept(List.of(row));
+                } catch (WriteBehindQueue.RejectedRowsException re) {
+                    log.error("Dropping replayed raw data row the database rejects: device {} {} ts {}: {}",
+                        row.getDevId(), row.getPin(), row.getTs(), re.getMessage());
+                }
+            }
+        }
+    }
+
+    private interface Flush {
+        void run() throws Exception;
+    }
+
+    private int replay(WriteBehindQueue.Sink sink, Flush beforeCheckpoint) throws Exception {
+        int replayed = 0;
+        long lastLsn = checkpointLsn;
+        for (long start : segmentStarts) {
+            Path file = segmentPath(start);
+            try (FileChannel ch = FileChannel.open(file)) {
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                while (buf.remaining() >= HEADER_SIZE) {
+                    int len = buf.getInt();
+                    if (len <= 0 || len > buf.remaining() - 12) {
+                        break; // end of segment (or a record torn by the crash)
+                    }
+                    int expectedCrc = buf.getInt();
+                    long lsn = buf.getLong();
+                    ByteBuffer payload = buf.slice(buf.position(), len);
+                    buf.position(buf.position() + len);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != expectedCrc) {
+                        log.warn("WAL record {} in {} is corrupt, ignoring the rest of the segment", lsn, file);
+                        break;
+                    }
+                    lastLsn = Math.max(lastLsn, lsn);
+                    if (lsn <= checkpointLsn) {
+                        continue;
+                    }
+                    try {
+                        String userId = getString(payload);
+                        long dashId = payload.getLong();
+                        long devId = payload.getLong();
+                        int pin = payload.getInt();
+                        String value = getString(payload);
+                        long ts = payload.getLong();
+                        sink.accept(userId, dashId, devId, pin, value, ts);
+                        replayed++;
+                    } catch (BufferUnderflowException e) {
+                        log.warn("WAL record {} in {} is truncated, skipping", lsn, file);
+                    }
+                }
+            }
+        }
+        beforeCheckpoint.run();
+        if (replayed > 0) {
+            log.info("Replayed {} raw data rows from the write-ahead log", replayed);
+        }
+        // Everything on disk is now in the database
+        nextLsn = lastLsn + 1;
+        syncedLsn = lastLsn;
+        checkpoint(lastLsn);
+        return replayed;
+    }
+
+    /**
+     * Write one row to the current segment.
+     * @return the lsn of the row, pass it to {@link #sync(long)} and later {@link #checkpoint(long)}
+     */
+    public synchronized long append(String userId, long dashId, long devId, int pin, String value, long ts) throws IOException {
+        scratch.clear();
+        scratch.position(HEADER_SIZE);
+        putString(scratch, userId);
+        scratch.putLong(dashId);
+        scratch.putLong(devId);
+        scratch.putInt(pin);
+        putString(scratch, value);
+        scratch.putLong(ts);
+        int len = scratch.position() - HEADER_SIZE;
+
+        if (mapped == null || writePos + HEADER_SIZE + len + 4 > segmentSize) {
+            rollSegment();
+        }
+        long lsn = nextLsn++;
+        crc.reset();
+        crc.update(scratch.array(), HEADER_SIZE, len);
+        scratch.putInt(0, len);
+        scratch.putInt(4, (int) crc.getValue());
+        scratch.putLong(8, lsn);
+        mapped.put(writePos, scratch, 0, HEADER_SIZE + len);
+        writePos += HEADER_SIZE + len;
+        return lsn;
+    }
+
+    /**
+     * Block until the record is on disk. Returns immediately when fsync is off.
+     */
+    public void sync(long lsn) {
+        if (!fsync || syncedLsn >= lsn) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedLsn >= lsn) {
+                return; // forced by the writer that went before us
+            }
+            MappedByteBuffer target;
+            long upTo;
+            synchronized (this) {
+                target = mapped;
+                upTo = nextLsn - 1;
+            }
+            target.force();
+            syncedLsn = upTo;
+            syncCount++;
+        }
+    }
+
+    /**
+     * Everything up to lsn is committed to the database: remember it and drop segments that are fully behind it.
+     */
+    public void checkpoint(long lsn) {
+        try {
+            List<Long> obsolete = new ArrayList<>();
+            boolean advanced;
+            synchronized (this) {
+                if (lsn < checkpointLsn) {
+                    return;
+                }
+                advanced = lsn > checkpointLsn;
+                checkpointLsn = lsn;
+                // A segment is done when the next one starts at or before checkpoint + 1
+                while (segmentStarts.size() > 1 && segmentStarts.get(1) <= checkpointLsn + 1) {
+                    obsolete.add(segmentStarts.remove(0));
+                }
+                if (mapped == null) {
+                    // Nothing appended since startup: old segments are fully replayed
+                    obsolete.addAll(segmentStarts);
+                    segmentStarts.clear();
+                }
+            }
+            if (advanced || !obsolete.isEmpty()) {
+                writeCheckpoint(lsn);
+            }
+            for (long start : obsolete) {
+                Files.deleteIfExists(segmentPath(start));
+            }
+        } catch (IOException e) {
+            log.error("Failed to write WAL checkpoint {}", lsn, e);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (mapped != null) {
+            mapped.force();
+        }
+        long start = nextLsn;
+        try (RandomAccessFile raf = new RandomAccessFile(segmentPath(start).toFile(), "rw")) {
+            raf.setLength(segmentSize);
+            // The mapping stays valid after the file is closed
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        writePos = 0;
+        segmentStarts.add(start);
+        log.debug("WAL segment {} started", start);
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(file).trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid WAL checkpoint in {}, replaying all segments", file);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long lsn) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(lsn));
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segmentPath(long start) {
+        return dir.resolve(String.format("wal-%020d.log", start));
+    }
+
+    private static long segmentStart(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("wal-") || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_RECORD_SIZE / 4) {
+            throw new IllegalArgumentException("value too large for WAL record: " + bytes.length + " bytes");
+        }
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized void close() {
+        try {
+            if (mapped != null) {
+                mapped.force();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to force WAL segment on close", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (this) {
+            stats.put("segments", segmentStarts.size());
+            stats.put("lastLsn", nextLsn - 1);
+        }
+        stats.put("checkpointLsn", checkpointLsn);
+        stats.put("fsync", fsync);
+        if (fsync) {
+            stats.put("syncedLsn", syncedLsn);
+            synchronized (syncLock) {
+                stats.put("groupCommits", syncCount);
+            }
+        }
+        return stats;
+    }
+}
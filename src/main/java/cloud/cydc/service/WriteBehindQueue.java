@@ -0,0 +1,644 @@
+package cloud.cydc.service;
+
+import cloud.cydc.model.RawDataPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer / single-consumer ring of pending raw-data rows.
+ * Slots are preallocated parallel arrays (primitive columns plus the two strings); each slot has a
+ * sequence number that producers claim by CAS on the tail, so offer and depth are O(1) and lock-free.
+ * The consumer only moves past a row once the sink accepted it, so a database outage leaves rows
+ * in the ring instead of losing them. When the ring is full the queue either blocks the producer
+ * (up to a timeout) or spills rows to a file that is fed back once the ring has room.
+ * With a {@link WriteAheadLog} every row is logged before it takes a slot; the consumer then
+ * checkpoints the log up to the last row the sink accepted.
+ */
+public class WriteBehindQueue {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    public enum Overflow { BLOCK, SPILL }
+
+    /**
+     * Receives drained rows; throwing stops the drain and keeps the row for the next attempt.
+     */
+    public interface Sink {
+        void accept(String userId, long dashId, long devId, int pin, String value, long ts) throws Exception;
+    }
+
+    /**
+     * Receives a whole batch; the rows leave the queue only if it returns normally.
+     * Throw {@link RejectedRowsException} when the rows themselves are bad (not the database being down):
+     * the batch is then retried row by row and the rows that still fail are dropped.
+     */
+    public interface BatchSink {
+        void accept(List<RawDataPoint> rows) throws Exception;
+    }
+
+    /**
+     * The database refused the rows themselves (invalid value, constraint), so retrying them cannot help.
+     */
+    public static class RejectedRowsException extends RuntimeException {
+        public RejectedRowsException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final String[] userIds;
+    private final long[] dashIds;
+    private final long[] devIds;
+    private final int[] pins;
+    private final String[] values;
+    private final long[] timestamps;
+    private final long[] lsns;
+
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Overflow overflow;
+    private final long blockTimeoutNanos;
+    private final Path spillDir;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+
+    // Rows are logged and claim their slot under walLock, so ring order matches log order
+    private final WriteAheadLog wal;
+    private final Object walLock = new Object();
+    private volatile long drainedLsn;
+
+    // Spill state, guarded by spillLock
+    private final Object spillLock = new Object();
+    private DataOutputStream spillOut;
+    private Path spillFile;
+    private long spillSeq;
+    // True while spilled rows may exist on disk
+    private volatile boolean spillActive;
+    // Consumer side: file being fed back into the ring, and how far into it (persisted next to it as .pos)
+    private DataInputStream replayIn;
+    private CountingInputStream replayCount;
+    private Path replayFile;
+
+    public WriteBehindQueue(int capacity, Overflow overflow, long blockTimeoutMs, Path spillDir) {
+        this(capacity, overflow, blockTimeoutMs, spillDir, null);
+    }
+
+    public WriteBehindQueue(int capacity, Overflow overflow, long blockTimeoutMs, Path spillDir, WriteAheadLog wal) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        this.userIds = new String[capacity];
+        this.dashIds = new long[capacity];
+        this.devIds = new long[capacity];
+        this.pins = new int[capacity];
+        this.values = new String[capacity];
+        this.timestamps = new long[capacity];
+        this.lsns = new long[capacity];
+        this.wal = wal;
+        if (wal != null && overflow == Overflow.SPILL) {
+            // Spilled rows would come back out of log order; the log already keeps them on disk
+            log.warn("Spill overflow is not used together with the write-ahead log, blocking instead");
+            overflow = Overflow.BLOCK;
+        }
+        this.overflow = overflow;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        this.spillDir = spillDir;
+        if (overflow == Overflow.SPILL) {
+            recoverSpillFiles();
+        }
+        log.info("Write-behind queue: capacity {}, overflow {}", capacity, overflow);
+    }
+
+    public WriteBehindQueue(int capacity) {
+        this(capacity, Overflow.BLOCK, 5000, null);
+    }
+
+    /**
+     * Queue one row. Applies the overflow policy when the ring is full.
+     * @return false if the row was dropped (BLOCK timed out, or spilling failed)
+     */
+    public boolean offer(String userId, long dashId, long devId, int pin, String value, long ts) {
+        return offer(userId, dashId, devId, pin, value, ts, true);
+    }
+
+    /**
+     * Same as {@link #offer}, but never waits for room: for producers running on a Netty event loop.
+     * With BLOCK a full ring drops the row right away.
+     */
+    public boolean offerNow(String userId, long dashId, long devId, int pin, String value, long ts) {
+        return offer(userId, dashId, devId, pin, value, ts, false);
+    }
+
+    /**
+     * True if a row offered now would be queued (or spilled) without waiting
+     */
+    public boolean hasRoom() {
+        return (overflow == Overflow.SPILL && spillDir != null) || tail.get() - head < capacity;
+    }
+
+    private boolean offer(String userId, long dashId, long devId, int pin, String value, long ts, boolean mayBlock) {
+        if (wal == null) {
+            if (tryOffer(userId, dashId, devId, pin, value, ts, 0)) {
+                return true;
+            }
+            if (overflow == Overflow.SPILL && spillDir != null) {
+                return spill(userId, dashId, devId, pin, value, ts);
+            }
+        }
+
+        // Backpressure: wait for the consumer to make room
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        boolean counted = false;
+        for (;;) {
+            if (wal != null) {
+                Long lsn = logAndOffer(userId, dashId, devId, pin, value, ts);
+                if (lsn == null) {
+                    return false;
+                }
+                if (lsn > 0) {
+                    // Group commit: outside the lock so concurrent writers share one msync
+                    wal.sync(lsn);
+                    return true;
+                }
+            } else if (counted && tryOffer(userId, dashId, devId, pin, value, ts, 0)) {
+                return true;
+            }
+            if (!counted) {
+                blocked.increment();
+                counted = true;
+            }
+            if (!mayBlock || System.nanoTime() - deadline >= 0) {
+                dropped.increment();
+                return false;
+            }
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Log the row and claim its slot under walLock, only if the ring has room (the wait happens outside the lock).
+     * @return the lsn, 0 if the ring is full, null if logging failed
+     */
+    private Long logAndOffer(String userId, long dashId, long devId, int pin, String value, long ts) {
+        synchronized (walLock) {
+            // Every producer claims slots under this lock, so room seen here cannot be taken before tryOffer
+            if (tail.get() - head >= capacity) {
+                return 0L;
+            }
+            long lsn;
+            try {
+                lsn = wal.append(userId, dashId, devId, pin, value, ts);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to log pending row for device {}", devId, e);
+                dropped.increment();
+                return null;
+            }
+            tryOffer(userId, dashId, devId, pin, value, ts, lsn);
+            return lsn;
+        }
+    }
+
+    private boolean tryOffer(String userId, long dashId, long devId, int pin, String value, long ts, long lsn) {
+        for (;;) {
+            long pos = tail.get();
+            int idx = (int) (pos & mask);
+            long diff = sequence.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    userIds[idx] = userId;
+                    dashIds[idx] = dashId;
+                    devIds[idx] = devId;
+                    pins[idx] = pin;
+                    values[idx] = value;
+                    timestamps[idx] = ts;
+                    lsns[idx] = lsn;
+                    // Publish: the slot is readable once its sequence is pos + 1
+                    sequence.set(idx, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // full
+            }
+            // else another producer claimed this position, retry
+        }
+    }
+
+    /**
+     * Hand up to max rows to the sink, in order. Single consumer only.
+     * @return number of rows accepted by the sink
+     */
+    public int drain(Sink sink, int max) throws Exception {
+        int count = 0;
+        long pos = head;
+        try {
+            while (count < max) {
+                int idx = (int) (pos & mask);
+                if (sequence.get(idx) != pos + 1) {
+                    break; // empty, or the producer has not published yet
+                }
+                sink.accept(userIds[idx], dashIds[idx], devIds[idx], pins[idx], values[idx], timestamps[idx]);
+                if (lsns[idx] > 0) {
+                    drainedLsn = lsns[idx];
+                }
+                userIds[idx] = null;
+                values[idx] = null;
+                sequence.set(idx, pos + capacity);
+                pos++;
+                head = pos;
+                count++;
+            }
+        } finally {
+            if (spillActive && size() < capacity / 2) {
+                refillFromSpill();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Hand up to max rows to the sink as one list. The rows stay queued until the sink returns,
+     * so a failed transaction is retried as a whole. If the sink rejects the rows themselves,
+     * they are retried one at a time and the ones that still fail are logged and dropped, so a
+     * single bad row cannot hold up the queue. Single consumer only.
+     * @return number of rows that left the queue (stored or dropped)
+     */
+    public int drainBatch(BatchSink sink, int max) throws Exception {
+        long start = head;
+        List<RawDataPoint> batch = new ArrayList<>(Math.min(max, capacity));
+        try {
+            long pos = start;
+            while (batch.size() < max) {
+                int idx = (int) (pos & mask);
+                if (sequence.get(idx) != pos + 1) {
+                    break;
+                }
+                batch.add(new RawDataPoint(userIds[idx], dashIds[idx], devIds[idx], "V" + pins[idx], values[idx], timestamps[idx]));
+                pos++;
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            try {
+                sink.accept(batch);
+            } catch (RejectedRowsException e) {
+                drainOneByOne(sink, batch);
+                return batch.size();
+            }
+            release(batch.size());
+            return batch.size();
+        } finally {
+            if (spillActive && size() < capacity / 2) {
+                refillFromSpill();
+            }
+        }
+    }
+
+    /**
+     * Retry a rejected batch row by row. Each row leaves the queue as soon as it is stored or dropped,
+     * so if the database goes away midway only the rows not tried yet are kept.
+     */
+    private void drainOneByOne(BatchSink sink, List<RawDataPoint> batch) throws Exception {
+        for (RawDataPoint row : batch) {
+            try {
+                sink.accept(List.of(row));
+            } catch (RejectedRowsException e) {
+                // Dead letter: the row is only kept in the log
+                log.error("Dropping raw data row the database rejects: device {} {} ts {} value \"{}\": {}",
+                    row.getDevId(), row.getPin(), row.getTs(), row.getValue(), e.getMessage());
+            }
+            release(1);
+        }
+    }
+
+    /**
+     * Free the first n slots after head and move head past them.
+     */
+    private void release(int n) {
+        long pos = head;
+        for (long end = pos + n; pos < end; pos++) {
+            int idx = (int) (pos & mask);
+            if (lsns[idx] > 0) {
+                drainedLsn = lsns[idx];
+            }
+            userIds[idx] = null;
+            values[idx] = null;
+            sequence.set(idx, pos + capacity);
+        }
+        head = pos;
+    }
+
+    /**
+     * Rows waiting in the ring (not counting spilled rows)
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * Mark everything the sink has accepted so far as committed in the write-ahead log.
+     * Call after the rows handed to the sink are durable in the database.
+     */
+    public void checkpoint() {
+        if (wal != null && drainedLsn > 0) {
+            wal.checkpoint(drainedLsn);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // ---- spill to disk ----
+
+    private boolean spill(String userId, long dashId, long devId, int pin, String value, long ts) {
+        synchronized (spillLock) {
+            try {
+                if (spillOut == null) {
+                    Files.createDirectories(spillDir);
+                    spillFile = spillDir.resolve(String.format("pending-%d-%06d.spill", System.currentTimeMillis(), spillSeq++));
+                    spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile.toFile())));
+                    log.warn("Write-behind queue full, spilling to {}", spillFile);
+                }
+                writeRecord(spillOut, userId, dashId, devId, pin, value, ts);
+                spillActive = true;
+                spilled.increment();
+                return true;
+            } catch (IOException e) {
+                log.error("Failed to spill pending row for device {}", devId, e);
+                dropped.increment();
+                return false;
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String userId, long dashId, long devId, int pin,
+                                    String value, long ts) throws IOException {
+        out.writeUTF(userId != null ? userId : "");
+        out.writeLong(dashId);
+        out.writeLong(devId);
+        out.writeInt(pin);
+        out.writeUTF(value != null ? value : "");
+        out.writeLong(ts);
+    }
+
+    /**
+     * Move spilled rows back into the ring while it has room. Runs on the consumer thread.
+     * The offset reached is saved, so a restart does not feed the same rows again.
+     */
+    private void refillFromSpill() {
+        try {
+            while (size() < capacity - 1) {
+                if (replayIn == null && !openNextReplay()) {
+                    return;
+                }
+                String userId;
+                long dashId, devId, ts;
+                int pin;
+                String value;
+                long start = replayCount.count;
+                try {
+                    userId = replayIn.readUTF();
+                    dashId = replayIn.readLong();
+                    devId = replayIn.readLong();
+                    pin = replayIn.readInt();
+                    value = replayIn.readUTF();
+                    ts = replayIn.readLong();
+                } catch (EOFException eof) {
+                    if (replayCount.count > start) {
+                        log.warn("Spill file {} ends with a partial row, ignoring it", replayFile);
+                    }
+                    closeReplay(true);
+                    continue;
+                }
+                if (!tryOffer(userId, dashId, devId, pin, value, ts, 0)) {
+                    // Lost the race for the last slot; the row is already read, so keep it in a fresh spill
+                    spill(userId, dashId, devId, pin, value, ts);
+                    break;
+                }
+            }
+            saveReplayOffset();
+        } catch (IOException e) {
+            // Unreadable (corrupt) file: set it aside instead of re-reading its first rows on every drain
+            log.error("Failed to read spilled rows from {}, moving it aside", replayFile, e);
+            quarantineReplay();
+        }
+    }
+
+    private boolean openNextReplay() throws IOException {
+        Path next;
+        synchronized (spillLock) {
+            // Roll the file being written so it can be read back
+            if (spillOut != null) {
+                spillOut.close();
+                spillOut = null;
+            }
+            next = oldestSpillFile();
+            if (next == null) {
+                spillActive = false;
+                return false;
+            }
+        }
+        replayFile = next;
+        replayCount = new CountingInputStream(new BufferedInputStream(new FileInputStream(next.toFile())));
+        replayIn = new DataInputStream(replayCount);
+        long offset = readReplayOffset(next);
+        if (offset > 0) {
+            replayIn.skipNBytes(offset);
+            replayCount.count = offset;
+            log.info("Resuming spill file {} at byte {}", next, offset);
+        }
+        return true;
+    }
+
+    private static Path offsetFile(Path spill) {
+        return spill.resolveSibling(spill.getFileName() + ".pos");
+    }
+
+    private static long readReplayOffset(Path spill) {
+        Path pos = offsetFile(spill);
+        try {
+            return Files.exists(pos) ? Long.parseLong(Files.readString(pos).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Invalid spill offset {}, reading {} from the start", pos, spill);
+            return 0;
+        }
+    }
+
+    private void saveReplayOffset() {
+        if (replayFile == null) {
+            return;
+        }
+        Path pos = offsetFile(replayFile);
+        Path tmp = pos.resolveSibling(pos.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, Long.toString(replayCount.count));
+            Files.move(tmp, pos, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to save spill offset for {}", replayFile, e);
+        }
+    }
+
+    private void closeReplay(boolean delete) {
+        try {
+            if (replayIn != null) replayIn.close();
+            if (replayFile != null) {
+                if (delete) {
+                    Files.deleteIfExists(replayFile);
+                    Files.deleteIfExists(offsetFile(replayFile));
+                } else {
+                    saveReplayOffset();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to remove spill file {}", replayFile, e);
+        }
+        replayIn = null;
+        replayCount = null;
+        replayFile = null;
+    }
+
+    private void quarantineReplay() {
+        Path file = replayFile;
+        try {
+            if (replayIn != null) replayIn.close();
+            if (file != null) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".bad"), StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(offsetFile(file));
+            }
+        } catch (IOException e) {
+            log.error("Failed to move spill file {} aside", file, e);
+        }
+        replayIn = null;
+        replayCount = null;
+        replayFile = null;
+    }
+
+    private Path oldestSpillFile() throws IOException {
+        if (spillDir == null || !Files.isDirectory(spillDir)) {
+            return null;
+        }
+        try (var files = Files.list(spillDir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".spill"))
+                .sorted()
+                .findFirst()
+                .orElse(null);
+        }
+    }
+
+    /**
+     * Spill files left by a previous run are fed back like any other spilled rows.
+     */
+    private void recoverSpillFiles() {
+        try {
+            if (spillDir == null || !Files.isDirectory(spillDir)) {
+                return;
+            }
+            try (var files = Files.list(spillDir)) {
+                long found = files.filter(p -> p.getFileName().toString().endsWith(".spill")).count();
+                if (found > 0) {
+                    spillActive = true;
+                    log.info("Found {} spill files from a previous run in {}", found, spillDir);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to scan spill directory {}", spillDir, e);
+        }
+    }
+
+    public void close() {
+        synchronized (spillLock) {
+            try {
+                if (spillOut != null) {
+                    spillOut.close();
+                    spillOut = null;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to close spill file {}", spillFile, e);
+            }
+        }
+        closeReplay(false);
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    /**
+     * Counts bytes handed to the DataInputStream (the buffer below reads ahead).
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("depth", size());
+        stats.put("capacity", capacity);
+        stats.put("overflow", overflow.name());
+        stats.put("blockedOffers", blocked.sum());
+        stats.put("droppedRows", dropped.sum());
+        stats.put("spilledRows", spilled.sum());
+        stats.put("spillActive", spillActive);
+        if (wal != null) {
+            stats.put("wal", wal.getStats());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,180 @@
+package cloud.cydc.tsdb;
+
+import java.io.IOException;
+
+/**
+ * Fixed-capacity compressed block of (ts, value) samples of one series, in time order.
+ * Timestamps are stored as delta-of-delta and values as XOR against the previous value
+ * (the Gorilla scheme): a regular sensor costs about 1-2 bytes per sample.
+ * The first sample is stored raw (64 + 64 bits).
+ */
+public final class GorillaBlock {
+    // Worst case for one sample: 4 + 64 bits timestamp, 2 + 5 + 6 + 64 bits value
+    static final int MAX_SAMPLE_BITS = 145;
+
+    private final byte[] buf;
+    private int bitPos;
+    private int count;
+    private long firstTs;
+    private long prevTs;
+    private long prevDelta;
+    private long prevValue;
+    private int prevLeading = -1;
+    private int prevTrailing;
+
+    public GorillaBlock(int capacityBytes) {
+        this.buf = new byte[capacityBytes];
+    }
+
+    /**
+     * @return false if the block may not have room for another sample (seal it and start a new one)
+     */
+    public boolean hasRoom() {
+        return bitPos + MAX_SAMPLE_BITS <= buf.length * 8;
+    }
+
+    public void append(long ts, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            firstTs = ts;
+            writeBits(ts, 64);
+            writeBits(bits, 64);
+        } else {
+            long delta = ts - prevTs;
+            writeTimestamp(delta - prevDelta);
+            writeValue(bits ^ prevValue);
+            prevDelta = delta;
+        }
+        prevTs = ts;
+        prevValue = bits;
+        count++;
+    }
+
+    private void writeTimestamp(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+            // Meaningful bits fit in the previous window
+            writeBits(0b10, 2);
+            writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(significant == 64 ? 0 : significant, 6);
+            writeBits(xor >>> trailing, significant);
+            prevLeading = leading;
+            prevTrailing = trailing;
+        }
+    }
+
+    private void writeBits(long value, int bits) {
+        for (int i = bits - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                buf[bitPos >>> 3] |= (byte) (0x80 >>> (bitPos & 7));
+            }
+            bitPos++;
+        }
+    }
+
+    public int count() { return count; }
+    public long firstTs() { return firstTs; }
+    public long lastTs() { return prevTs; }
+    public int sizeBytes() { return (bitPos + 7) >>> 3; }
+    public byte[] bytes() { return buf; }
+
+    /**
+     * Receives decoded samples; return false to stop.
+     */
+    public interface SampleVisitor {
+        boolean visit(int index, long ts, double value) throws IOException;
+    }
+
+    /**
+     * Decode count samples from an encoded block.
+     */
+    public static void decode(byte[] data, int count, SampleVisitor visitor) throws IOException {
+        BitReader in = new BitReader(data);
+        long ts = 0, delta = 0, valueBits = 0;
+        int leading = 0, trailing = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                ts = in.read(64);
+                valueBits = in.read(64);
+            } else {
+                long dod;
+                if (in.read(1) == 0) {
+                    dod = 0;
+                } else if (in.read(1) == 0) {
+                    dod = signExtend(in.read(7), 7);
+                } else if (in.read(1) == 0) {
+                    dod = signExtend(in.read(9), 9);
+                } else if (in.read(1) == 0) {
+                    dod = signExtend(in.read(12), 12);
+                } else {
+                    dod = in.read(64);
+                }
+                delta += dod;
+                ts += delta;
+
+                if (in.read(1) != 0) {
+                    if (in.read(1) != 0) {
+                        leading = (int) in.read(5);
+                        int significant = (int) in.read(6);
+                        if (significant == 0) significant = 64;
+                        trailing = 64 - leading - significant;
+                    }
+                    valueBits ^= in.read(64 - leading - trailing) << trailing;
+                }
+            }
+            if (!visitor.visit(i, ts, Double.longBitsToDouble(valueBits))) {
+                return;
+            }
+        }
+    }
+
+    private static long signExtend(long value, int bits) {
+        int shift = 64 - bits;
+        return (value << shift) >> shift;
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private int pos;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        long read(int bits) {
+            long v = 0;
+            for (int i = 0; i < bits; i++) {
+                v = (v << 1) | ((data[pos >>> 3] >>> (7 - (pos & 7))) & 1);
+                pos++;
+            }
+            return v;
+        }
+    }
+}
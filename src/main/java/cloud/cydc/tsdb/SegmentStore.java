@@ -0,0 +1,426 @@
+package cloud.cydc.tsdb;
+
+import cloud.cydc.db.RawDataDao;
+import cloud.cydc.db.RawDataStore;
+import cloud.cydc.model.RawDataPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Embedded store for numeric pin samples: one series per user/dash/device/pin, each a chain of
+ * {@link GorillaBlock}s kept in slots of memory-mapped segment files (seg-NNNNNN.dat).
+ * A slot is a 40-byte header [series id][count][length][unused][first ts][last ts][first seq]
+ * followed by the compressed bytes. The open block of a series is rewritten in its slot after
+ * every append, header count last, so a killed process keeps everything appended so far.
+ * Series names are listed in series.idx; the block index is rebuilt from the slot headers on start.
+ * Sample ids (for keyset paging) are per-series sequence numbers. Samples older than the last one
+ * of their series are not taken; the caller keeps them elsewhere.
+ * Retention deletes whole segment files once every block in them is older than the cutoff.
+ */
+public class SegmentStore implements RawDataStore {
+    private static final Logger log = LoggerFactory.getLogger(SegmentStore.class);
+    private static final int HEADER_SIZE = 40;
+    private static final int BLOCK_BYTES = 2048;
+    private static final int SLOT_SIZE = HEADER_SIZE + BLOCK_BYTES;
+    private static final String SERIES_FILE = "series.idx";
+
+    private static final class Segment {
+        final int no;
+        final Path file;
+        final MappedByteBuffer buf;
+        int writePos;
+        long maxTs = Long.MIN_VALUE;
+
+        Segment(int no, Path file, MappedByteBuffer buf) {
+            this.no = no;
+            this.file = file;
+            this.buf = buf;
+        }
+    }
+
+    private static final class BlockRef {
+        final Segment segment;
+        final int offset;
+        final long firstSeq;
+        final long firstTs;
+        long lastTs;
+        int count;
+        int length;
+
+        BlockRef(Segment segment, int offset, long firstSeq, long firstTs) {
+            this.segment = segment;
+            this.offset = offset;
+            this.firstSeq = firstSeq;
+            this.firstTs = firstTs;
+        }
+    }
+
+    private static final class Series {
+        final int id;
+        final List<BlockRef> blocks = new ArrayList<>();
+        GorillaBlock open;
+        BlockRef openRef;
+        long nextSeq;
+        long lastTs = Long.MIN_VALUE;
+
+        Series(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    // All state below is guarded by this
+    private final Map<String, Series> series = new HashMap<>();
+    private final Map<Integer, Series> seriesById = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private BufferedWriter seriesOut;
+    private int nextSeriesId = 1;
+    private long samples;
+    private long outOfOrderSamples;
+
+    public SegmentStore(Path dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize - segmentSize % SLOT_SIZE;
+        Files.createDirectories(dir);
+        loadSeries();
+        loadSegments();
+        seriesOut = Files.newBufferedWriter(dir.resolve(SERIES_FILE), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        log.info("Segment store {}: {} series, {} segments, {} samples", dir, series.size(), segments.size(), samples);
+    }
+
+    @Override
+    public boolean accepts(RawDataPoint point) {
+        // Values that would not read back as the same text ("25.0") stay in raw_data
+        return point.isCanonicalNumber();
+    }
+
+    @Override
+    public synchronized List<RawDataPoint> append(List<RawDataPoint> points) {
+        List<RawDataPoint> rejected = new ArrayList<>();
+        Map<Series, Boolean> dirty = new IdentityHashMap<>();
+        for (int i = 0; i < points.size(); i++) {
+            RawDataPoint p = points.get(i);
+            if (!accepts(p)) {
+                rejected.add(p);
+                continue;
+            }
+            double value = p.numericValue();
+            long ts = p.getTs();
+            Series s;
+            try {
+                s = seriesFor(p);
+                if (ts < s.lastTs) {
+                    // Blocks are time ordered; an older row (e.g. replayed from a spill file) goes to raw_data as is
+                    rejected.add(p);
+                    outOfOrderSamples++;
+                    continue;
+                }
+                if (s.open == null || !s.open.hasRoom()) {
+                    // Slot first: if it cannot be allocated the series keeps its current block
+                    BlockRef ref = allocateSlot(s.nextSeq, ts);
+                    if (s.open != null) {
+                        writeBlock(s);
+                    }
+                    s.open = new GorillaBlock(BLOCK_BYTES);
+                    s.openRef = ref;
+                    s.blocks.add(ref);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Everything before this sample is kept; it and the rest are handed back
+                log.error("Segment store write failed at sample {} of {}, returning the rest", i, points.size(), e);
+                rejected.addAll(points.subList(i, points.size()));
+                break;
+            }
+            s.open.append(ts, value);
+            s.lastTs = ts;
+            s.nextSeq++;
+            samples++;
+            dirty.put(s, Boolean.TRUE);
+        }
+        for (Series s : dirty.keySet()) {
+            writeBlock(s);
+        }
+        return rejected;
+    }
+
+    /**
+     * Copy the open block of a series into its slot. The header count is written last.
+     */
+    private void writeBlock(Series s) {
+        BlockRef ref = s.openRef;
+        GorillaBlock block = s.open;
+        MappedByteBuffer buf = ref.segment.buf;
+        int length = block.sizeBytes();
+        buf.put(ref.offset + HEADER_SIZE, block.bytes(), 0, length);
+        buf.putInt(ref.offset, s.id);
+        buf.putInt(ref.offset + 8, length);
+        buf.putLong(ref.offset + 16, ref.firstTs);
+        buf.putLong(ref.offset + 24, block.lastTs());
+        buf.putLong(ref.offset + 32, ref.firstSeq);
+        buf.putInt(ref.offset + 4, block.count());
+        ref.lastTs = block.lastTs();
+        ref.count = block.count();
+        ref.length = length;
+        ref.segment.maxTs = Math.max(ref.segment.maxTs, ref.lastTs);
+    }
+
+    private BlockRef allocateSlot(long firstSeq, long firstTs) throws IOException {
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || current.writePos + SLOT_SIZE > segmentSize) {
+            current = openSegment(current == null ? 1 : current.no + 1, true);
+            segments.add(current);
+        }
+        BlockRef ref = new BlockRef(current, current.writePos, firstSeq, firstTs);
+        current.writePos += SLOT_SIZE;
+        return ref;
+    }
+
+    private Series seriesFor(RawDataPoint p) throws IOException {
+        String key = key(p.getUserId(), p.getDashId(), p.getDevId(), p.getPin());
+        Series s = series.get(key);
+        if (s == null) {
+            // Listed in series.idx before use, so no block on disk belongs to an unknown series
+            int id = nextSeriesId;
+            seriesOut.write(id + "\t" + key);
+            seriesOut.newLine();
+            seriesOut.flush();
+            nextSeriesId++;
+            s = new Series(id);
+            series.put(key, s);
+            seriesById.put(id, s);
+        }
+        return s;
+    }
+
+    @Override
+    public int scan(String userId, long dashId, long devId, String pin, long startTs, long endTs,
+                    long afterTs, long afterId, int limit, RawDataDao.RowHandler handler) throws IOException {
+        List<long[]> refs = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        long lowTs = Math.max(startTs, afterTs);
+        synchronized (this) {
+            Series s = series.get(key(userId, dashId, devId, pin));
+            if (s == null) {
+                return -1;
+            }
+            // Snapshot the matching blocks; decoding happens outside the lock
+            int first = firstBlockEndingAtOrAfter(s.blocks, lowTs);
+            for (int i = first; i < s.blocks.size(); i++) {
+                BlockRef ref = s.blocks.get(i);
+                if (ref.firstTs > endTs) break;
+                byte[] bytes = new byte[ref.length];
+                ref.segment.buf.get(ref.offset + HEADER_SIZE, bytes);
+                data.add(bytes);
+                refs.add(new long[]{ref.firstSeq, ref.count});
+            }
+        }
+
+        int[] rows = {0};
+        for (int i = 0; i < data.size() && rows[0] < limit; i++) {
+            long firstSeq = refs.get(i)[0];
+            boolean[] done = {false};
+            GorillaBlock.decode(data.get(i), (int) refs.get(i)[1], (index, ts, value) -> {
+                if (ts > endTs) {
+                    done[0] = true;
+                    return false;
+                }
+                long seq = firstSeq + index;
+                if (ts < startTs || ts < afterTs || (ts == afterTs && seq <= afterId)) {
+                    return true;
+                }
+                handler.accept(seq, ts, RawDataPoint.formatNumber(value));
+                return ++rows[0] < limit;
+            });
+            if (done[0]) break;
+        }
+        return rows[0];
+    }
+
+    @Override
+    public void scanSince(long startTs, Consumer<RawDataPoint> sink) throws IOException {
+        List<String[]> names = new ArrayList<>();
+        List<List<byte[]>> data = new ArrayList<>();
+        List<List<Integer>> counts = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Series> e : series.entrySet()) {
+                List<BlockRef> blocks = e.getValue().blocks;
+                int first = firstBlockEndingAtOrAfter(blocks, startTs);
+                if (first == blocks.size()) continue;
+                List<byte[]> bytes = new ArrayList<>();
+                List<Integer> blockCounts = new ArrayList<>();
+                for (int i = first; i < blocks.size(); i++) {
+                    BlockRef ref = blocks.get(i);
+                    byte[] b = new byte[ref.length];
+                    ref.segment.buf.get(ref.offset + HEADER_SIZE, b);
+                    bytes.add(b);
+                    blockCounts.add(ref.count);
+                }
+                names.add(e.getKey().split("\t", 4));
+                data.add(bytes);
+                counts.add(blockCounts);
+            }
+        }
+        for (int n = 0; n < names.size(); n++) {
+            String[] name = names.get(n);
+            long dashId = Long.parseLong(name[1]);
+            long devId = Long.parseLong(name[2]);
+            for (int i = 0; i < data.get(n).size(); i++) {
+                GorillaBlock.decode(data.get(n).get(i), counts.get(n).get(i), (index, ts, value) -> {
+                    if (ts >= startTs) {
+                        sink.accept(new RawDataPoint(name[0], dashId, devId, name[3], RawDataPoint.formatNumber(value), ts));
+                    }
+                    return true;
+                });
+            }
+        }
+    }
+
+    private static int firstBlockEndingAtOrAfter(List<BlockRef> blocks, long ts) {
+        int lo = 0, hi = blocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).lastTs < ts) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public synchronized long deleteOlderThan(long ts) {
+        long dropped = 0;
+        // The newest segment is still being written
+        while (segments.size() > 1 && segments.get(0).maxTs < ts) {
+            Segment seg = segments.remove(0);
+            for (Series s : series.values()) {
+                while (!s.blocks.isEmpty() && s.blocks.get(0).segment == seg) {
+                    BlockRef ref = s.blocks.remove(0);
+                    if (ref == s.openRef) {
+                        s.open = null;
+                        s.openRef = null;
+                    }
+                    dropped += ref.count;
+                }
+            }
+            try {
+                Files.deleteIfExists(seg.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete segment {}", seg.file, e);
+            }
+            log.info("Dropped segment {} (data before {})", seg.file.getFileName(), ts);
+        }
+        samples -= dropped;
+        return dropped;
+    }
+
+    // ---- startup ----
+
+    private void loadSeries() throws IOException {
+        Path file = dir.resolve(SERIES_FILE);
+        if (!Files.exists(file)) return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) continue;
+            int id = Integer.parseInt(line.substring(0, tab));
+            Series s = new Series(id);
+            series.put(line.substring(tab + 1), s);
+            seriesById.put(id, s);
+            nextSeriesId = Math.max(nextSeriesId, id + 1);
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (var files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                .filter(n -> n.startsWith("seg-") && n.endsWith(".dat"))
+                .forEach(n -> numbers.add(Integer.parseInt(n.substring(4, n.length() - 4))));
+        }
+        numbers.sort(null);
+        for (int no : numbers) {
+            Segment seg = openSegment(no, false);
+            segments.add(seg);
+            // Slots are allocated in order; the first empty header ends the segment
+            while (seg.writePos + SLOT_SIZE <= segmentSize) {
+                int off = seg.writePos;
+                int id = seg.buf.getInt(off);
+                if (id == 0) break;
+                seg.writePos += SLOT_SIZE;
+                int count = seg.buf.getInt(off + 4);
+                Series s = seriesById.get(id);
+                if (s == null || count == 0) continue;
+                BlockRef ref = new BlockRef(seg, off, seg.buf.getLong(off + 32), seg.buf.getLong(off + 16));
+                ref.count = count;
+                ref.length = seg.buf.getInt(off + 8);
+                ref.lastTs = seg.buf.getLong(off + 24);
+                s.blocks.add(ref);
+                s.nextSeq = Math.max(s.nextSeq, ref.firstSeq + count);
+                s.lastTs = Math.max(s.lastTs, ref.lastTs);
+                seg.maxTs = Math.max(seg.maxTs, ref.lastTs);
+                samples += count;
+            }
+        }
+    }
+
+    private Segment openSegment(int no, boolean create) throws IOException {
+        Path file = dir.resolve(String.format("seg-%06d.dat", no));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (create || raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            // The mapping stays valid after the file is closed
+            return new Segment(no, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    // ---- helpers ----
+
+    private static String key(String userId, long dashId, long devId, String pin) {
+        return userId + "\t" + dashId + "\t" + devId + "\t" + pin;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long bytes = 0;
+        for (Series s : series.values()) {
+            for (BlockRef ref : s.blocks) bytes += ref.length;
+        }
+        stats.put("series", series.size());
+        stats.put("segments", segments.size());
+        stats.put("samples", samples);
+        stats.put("compressedBytes", bytes);
+        stats.put("bytesPerSample", samples > 0 ? Math.round(bytes * 100.0 / samples) / 100.0 : 0);
+        stats.put("outOfOrderSamples", outOfOrderSamples);
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment seg : segments) {
+            seg.buf.force();
+        }
+        try {
+            seriesOut.close();
+        } catch (IOException e) {
+            log.warn("Failed to close {}", SERIES_FILE, e);
+        }
+    }
+}
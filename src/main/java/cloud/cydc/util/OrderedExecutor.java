@@ -0,0 +1,95 @@
+package cloud.cydc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor that partitions tasks by key onto single-threaded lanes.
+ * Tasks with the same key (e.g. device ID) run in submission order, different keys run in parallel.
+ * Each lane has a bounded queue; {@link #execute(long, Runnable)} returns false instead of blocking when it is full.
+ */
+public class OrderedExecutor {
+    private static final Logger log = LoggerFactory.getLogger(OrderedExecutor.class);
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+    private final LongAdder rejected = new LongAdder();
+
+    public OrderedExecutor(String name, int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("threads and queueCapacity must be positive");
+        }
+        this.name = name;
+        this.lanes = new ThreadPoolExecutor[threads];
+        AtomicInteger counter = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        }
+        log.info("{} executor started: {} lanes, queue capacity {} per lane", name, threads, queueCapacity);
+    }
+
+    /**
+     * Queue a task on the lane owning the key.
+     * @return false if that lane's queue is full (or the executor is shut down)
+     */
+    public boolean execute(long key, Runnable task) {
+        try {
+            lanes[laneOf(key)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    private int laneOf(long key) {
+        // Spread sequential device IDs across lanes
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % lanes.length);
+    }
+
+    public int getQueuedTasks() {
+        int total = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            total += lane.getQueue().size();
+        }
+        return total;
+    }
+
+    public long getRejectedTasks() {
+        return rejected.sum();
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor lane : lanes) {
+                if (!lane.awaitTermination(5, TimeUnit.SECONDS)) {
+                    lane.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor lane : lanes) {
+                lane.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+        log.info("{} executor stopped", name);
+    }
+}
@@ -0,0 +1,116 @@
+package cloud.cydc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-device and per-user token buckets for pin writes.
+ * Each bucket is a single AtomicLong holding the theoretical arrival time of the next
+ * message (GCRA), updated with CAS: no locks and no allocation on the hot path.
+ * A rate of 0 disables the limit for that scope.
+ */
+public class RateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    // Sweep idle buckets once every this many calls
+    private static final int SWEEP_MASK = 4095;
+
+    private final Limit deviceLimit;
+    private final Limit userLimit;
+    private final ConcurrentHashMap<Long, AtomicLong> deviceBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder deviceThrottled = new LongAdder();
+    private final LongAdder userThrottled = new LongAdder();
+
+    private static final class Limit {
+        final long intervalNanos;  // time to earn one token
+        final long toleranceNanos; // how far ahead of now a bucket may run (burst - 1 tokens)
+
+        Limit(double perSecond, int burst) {
+            this.intervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+            this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        }
+
+        boolean enabled() {
+            return intervalNanos > 0;
+        }
+    }
+
+    public RateLimiter(double devicePerSecond, int deviceBurst, double userPerSecond, int userBurst) {
+        this.deviceLimit = new Limit(devicePerSecond, deviceBurst);
+        this.userLimit = new Limit(userPerSecond, userBurst);
+        log.info("Rate limiter: device {}/s (burst {}), user {}/s (burst {})",
+            devicePerSecond, deviceBurst, userPerSecond, userBurst);
+    }
+
+    /**
+     * Take one token from the device bucket and from its owner's bucket.
+     * @return false if either limit is exceeded
+     */
+    public boolean tryAcquire(String userId, long devId) {
+        long now = System.nanoTime();
+        if ((calls.incrementAndGet() & SWEEP_MASK) == 0) {
+            sweep(now);
+        }
+
+        AtomicLong device = null;
+        if (deviceLimit.enabled()) {
+            device = deviceBuckets.computeIfAbsent(devId, k -> new AtomicLong(now));
+            if (!take(device, deviceLimit, now)) {
+                deviceThrottled.increment();
+                return false;
+            }
+        }
+        if (userLimit.enabled() && userId != null
+                && !take(userBuckets.computeIfAbsent(userId, k -> new AtomicLong(now)), userLimit, now)) {
+            // The message is dropped, so it must not cost the device anything
+            if (device != null) {
+                device.addAndGet(-deviceLimit.intervalNanos);
+            }
+            userThrottled.increment();
+            return false;
+        }
+        allowed.increment();
+        return true;
+    }
+
+    private static boolean take(AtomicLong bucket, Limit limit, long now) {
+        for (;;) {
+            long tat = bucket.get();
+            long base = tat - now > 0 ? tat : now;
+            if (base - now > limit.toleranceNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(tat, base + limit.intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A bucket whose arrival time is in the past is full again, same as a new one, so it can go.
+     */
+    private void sweep(long now) {
+        deviceBuckets.values().removeIf(b -> b.get() - now <= 0);
+        userBuckets.values().removeIf(b -> b.get() - now <= 0);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("allowed", allowed.sum());
+        stats.put("deviceThrottled", deviceThrottled.sum());
+        stats.put("userThrottled", userThrottled.sum());
+        stats.put("trackedDevices", deviceBuckets.size());
+        stats.put("trackedUsers", userBuckets.size());
+        return stats;
+    }
+}
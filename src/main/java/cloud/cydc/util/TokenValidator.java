@@ -1,15 +1,52 @@
 package cloud.cydc.util;
 
+import cloud.cydc.model.DeviceIdentity;
 import cloud.cydc.service.DeviceInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Token validation utilities for device and hardware authentication.
+ * Validation results are kept in a bounded in-process cache: valid tokens map to their
+ * resolved identity, invalid tokens are cached (for a shorter time) as negative entries.
  */
 public class TokenValidator {
+    private static final Logger log = LoggerFactory.getLogger(TokenValidator.class);
+
     private final DeviceInfoService deviceService;
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class CacheEntry {
+        final DeviceIdentity identity; // null = known invalid token
+        final long expiresAt;
+
+        CacheEntry(DeviceIdentity identity, long expiresAt) {
+            this.identity = identity;
+            this.expiresAt = expiresAt;
+        }
+    }
 
     public TokenValidator(DeviceInfoService deviceService) {
+        this(deviceService, 100_000, 300, 30);
+    }
+
+    public TokenValidator(DeviceInfoService deviceService, int maxEntries, int ttlSeconds, int negativeTtlSeconds) {
         this.deviceService = deviceService;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
     }
 
     /**
@@ -38,7 +75,23 @@ public class TokenValidator {
 
             return new String[]{userId, dashId, devId, randomPart};
         } catch (Exception e) {
-            System.out.println("[TokenValidator] Error extracting token info: " + e.getMessage());
+            log.warn("[TokenValidator] Error extracting token info: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses the identity encoded in a token, without validating it against storage.
+     * Returns null if token format is invalid
+     */
+    public DeviceIdentity parseIdentity(String token) {
+        String[] tokenInfo = extractTokenInfo(token);
+        if (tokenInfo == null) {
+            return null;
+        }
+        try {
+            return new DeviceIdentity(tokenInfo[0], Long.parseLong(tokenInfo[1]), Long.parseLong(tokenInfo[2]));
+        } catch (NumberFormatException e) {
             return null;
         }
     }
@@ -49,44 +102,98 @@ public class TokenValidator {
      * Note: userId can contain hyphens, so we need to parse from the end
      */
     public boolean validateToken(String token) {
+        return resolve(token) != null;
+    }
+
+    /**
+     * Validates a device token and returns its identity, or null if the token is invalid.
+     * Served from the cache when possible; storage is only consulted on a miss.
+     */
+    public DeviceIdentity resolve(String token) {
         if (token == null || token.isEmpty()) {
-            System.out.println("[TokenValidator] Token is null or empty");
-            return false;
+            log.debug("[TokenValidator] Token is null or empty");
+            return null;
         }
 
+        long now = System.nanoTime();
+        CacheEntry entry = cache.get(token);
+        if (entry != null && now - entry.expiresAt < 0) {
+            hits.increment();
+            return entry.identity;
+        }
+        misses.increment();
+
+        DeviceIdentity identity;
         try {
-            // Parse from the end: find last 3 numeric segments
-            String[] parts = token.split("-");
-            System.out.println("[TokenValidator] Token parts count: " + parts.length + ", token: " + token);
-            if (parts.length < 4) {
-                System.out.println("[TokenValidator] Not enough parts (need 4+, got " + parts.length + ")");
-                return false;
-            }
+            identity = lookup(token);
+        } catch (Exception e) {
+            // Storage failure says nothing about the token, so it is not cached
+            log.error("[TokenValidator] Error validating token", e);
+            return null;
+        }
 
-            // Last part is the random token portion
-            String randomPart = parts[parts.length - 1];
-            // Second to last is deviceId
-            long devId = Long.parseLong(parts[parts.length - 2]);
-            // Third to last is dashId
-            long dashId = Long.parseLong(parts[parts.length - 3]);
-            // Everything before that is userId
-            String userId = String.join("-", java.util.Arrays.copyOf(parts, parts.length - 3));
+        if (cache.size() >= maxEntries) {
+            evict(now);
+        }
+        cache.put(token, new CacheEntry(identity, now + (identity != null ? ttlNanos : negativeTtlNanos)));
+        return identity;
+    }
 
-            // Reconstruct expected token format
-            String expectedToken = userId + "-" + dashId + "-" + devId + "-" + randomPart;
-            System.out.println("[TokenValidator] Parsed - userId: " + userId + ", dashId: " + dashId + ", devId: " + devId);
-            System.out.println("[TokenValidator] Expected token: " + expectedToken);
-            
-            // Get stored token and compare entire token (not just random part)
-            String storedToken = deviceService.findTokenByDeviceId(userId, dashId, devId);
-            System.out.println("[TokenValidator] Stored token: " + storedToken);
-            boolean result = storedToken != null && storedToken.equals(expectedToken);
-            System.out.println("[TokenValidator] Validation result: " + result);
-            return result;
-        } catch (Exception e) {
-            System.out.println("[TokenValidator] Exception: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    private DeviceIdentity lookup(String token) {
+        String[] parts = extractTokenInfo(token);
+        DeviceIdentity identity = parseIdentity(token);
+        if (parts == null || identity == null) {
+            log.debug("[TokenValidator] Malformed token: {}", token);
+            return null;
         }
+
+        // Reconstruct expected token format
+        String expectedToken = identity.getUserId() + "-" + identity.getDashId() + "-" + identity.getDevId() + "-" + parts[3];
+
+        // Get stored token and compare entire token (not just random part)
+        String storedToken = deviceService.findTokenByDeviceId(identity.getUserId(), identity.getDashId(), identity.getDevId());
+        boolean result = storedToken != null && storedToken.equals(expectedToken);
+        log.debug("[TokenValidator] Validated {}: {}", identity, result);
+        return result ? identity : null;
+    }
+
+    /**
+     * Drops expired entries; if the cache is still full, drops arbitrary entries down to 90% capacity.
+     */
+    private void evict(long now) {
+        cache.values().removeIf(e -> now - e.expiresAt >= 0);
+        int target = maxEntries - maxEntries / 10;
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Forget a single token, e.g. when it is replaced or first assigned to a device.
+     */
+    public void invalidate(String token) {
+        if (token != null) {
+            cache.remove(token);
+        }
+    }
+
+    /**
+     * Forget every cached token that resolved to the given device (token regenerated or device deleted).
+     */
+    public void invalidateDevice(String userId, long dashId, long devId) {
+        cache.values().removeIf(e -> e.identity != null
+            && e.identity.getDevId() == devId
+            && e.identity.getDashId() == dashId
+            && e.identity.getUserId().equals(userId));
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", cache.size());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        return stats;
     }
 }
@@ -1,12 +1,10 @@
 package cloud.cydc.websocket;
 
+import cloud.cydc.netty.NettyTransport;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
@@ -22,58 +20,42 @@ public class WebSocketServer {
     private final int port;
     private final SslContext sslCtx;
     private final WebSocketFrameHandler frameHandler;
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private final NettyTransport transport;
     private Channel serverChannel;
 
-    public WebSocketServer(int port, SslContext sslCtx, WebSocketFrameHandler frameHandler) {
+    public WebSocketServer(int port, SslContext sslCtx, WebSocketFrameHandler frameHandler, NettyTransport transport) {
         this.port = port;
         this.sslCtx = sslCtx;
         this.frameHandler = frameHandler;
+        this.transport = transport;
     }
 
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
-
-        try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            if (sslCtx != null) {
-                                ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
-                            }
-                            ch.pipeline()
-                                    .addLast(new HttpServerCodec())
-                                    .addLast(new HttpObjectAggregator(65536))
-                                    .addLast(new WebSocketServerProtocolHandler("/ws", null, true))
-                                    .addLast(new IdleStateHandler(30, 30, 0, TimeUnit.SECONDS))
-                                    .addLast(frameHandler);
-                        }
-                    });
-
-            serverChannel = bootstrap.bind(port).sync().channel();
-            log.info("WebSocket server started on port {} (SSL: {})", port, sslCtx != null);
-        } catch (Exception e) {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            throw e;
-        }
+        ServerBootstrap bootstrap = transport.newServerBootstrap();
+        bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                if (sslCtx != null) {
+                    ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
+                }
+                ch.pipeline()
+                        .addLast(new HttpServerCodec())
+                        .addLast(new HttpObjectAggregator(65536))
+                        .addLast(new WebSocketServerProtocolHandler("/ws", null, true))
+                        .addLast(new IdleStateHandler(30, 30, 0, TimeUnit.SECONDS))
+                        .addLast(frameHandler);
+            }
+        });
+
+        serverChannel = bootstrap.bind(port).sync().channel();
+        log.info("WebSocket server started on port {} (SSL: {})", port, sslCtx != null);
     }
 
     public void stop() {
+        // Event loops are shared and shut down by the owning NettyTransport
         if (serverChannel != null) {
             serverChannel.close();
         }
-        if (bossGroup != null) {
-            bossGroup.shutdownGracefully();
-        }
-        if (workerGroup != null) {
-            workerGroup.shutdownGracefully();
-        }
         log.info("WebSocket server stopped");
     }
 }
@@ -0,0 +1,86 @@
+package cloud.cydc;
+
+import cloud.cydc.blynk.BlynkMessage;
+import cloud.cydc.blynk.BlynkMessageDecoder;
+import cloud.cydc.blynk.BlynkMessageEncoder;
+import cloud.cydc.blynk.BlynkProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBlynkMessageCodec {
+
+    @Test
+    public void testDecodedBodyIsRetainedSliceOfInput() {
+        EmbeddedChannel ch = new EmbeddedChannel(new BlynkMessageDecoder());
+        byte[] body = ("vw\0" + "5\0" + "42").getBytes(StandardCharsets.US_ASCII);
+        ByteBuf in = Unpooled.buffer();
+        in.writeByte(BlynkProtocol.BLYNK_CMD_HARDWARE).writeShort(7).writeShort(body.length).writeBytes(body);
+
+        assertTrue(ch.writeInbound(in));
+        BlynkMessage msg = ch.readInbound();
+
+        assertEquals(BlynkProtocol.BLYNK_CMD_HARDWARE, msg.getCommand());
+        assertEquals(7, msg.getMessageId());
+        assertEquals(body.length, msg.getLength());
+        assertEquals("vw\0" + "5\0" + "42", msg.getBodyAsString());
+        // Slice shares the inbound buffer and keeps it alive until the message is released
+        assertSame(in, msg.content().unwrap());
+        assertEquals(1, in.refCnt());
+
+        assertTrue(msg.release());
+        assertEquals(0, in.refCnt());
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    public void testPartialFrameWaitsForBody() {
+        EmbeddedChannel ch = new EmbeddedChannel(new BlynkMessageDecoder());
+        ByteBuf in = Unpooled.buffer();
+        in.writeByte(BlynkProtocol.BLYNK_CMD_LOGIN).writeShort(1).writeShort(4).writeBytes(new byte[]{'a', 'b'});
+
+        assertFalse(ch.writeInbound(in));
+        assertTrue(ch.writeInbound(Unpooled.wrappedBuffer(new byte[]{'c', 'd'})));
+        BlynkMessage msg = ch.readInbound();
+        assertEquals("abcd", msg.getBodyAsString());
+        msg.release();
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    public void testEncodeReleasesMessage() {
+        EmbeddedChannel ch = new EmbeddedChannel(new BlynkMessageEncoder());
+        BlynkMessage msg = new BlynkMessage(BlynkProtocol.BLYNK_CMD_HARDWARE, 3,
+            Unpooled.copiedBuffer("vw\0" + "1\0" + "on", StandardCharsets.US_ASCII));
+
+        assertTrue(ch.writeOutbound(msg));
+        assertEquals(0, msg.refCnt());
+
+        ByteBuf out = ch.readOutbound();
+        assertEquals(BlynkProtocol.BLYNK_CMD_HARDWARE, out.readByte());
+        assertEquals(3, out.readUnsignedShort());
+        assertEquals(7, out.readUnsignedShort());
+        assertEquals("vw\0" + "1\0" + "on", out.toString(StandardCharsets.US_ASCII));
+        out.release();
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    public void testResponseCarriesStatusInLengthField() {
+        EmbeddedChannel ch = new EmbeddedChannel(new BlynkMessageEncoder());
+        assertTrue(ch.writeOutbound(BlynkMessage.response(9, BlynkProtocol.BLYNK_SUCCESS)));
+
+        ByteBuf out = ch.readOutbound();
+        assertEquals(BlynkProtocol.BLYNK_HEADER_SIZE, out.readableBytes());
+        assertEquals(BlynkProtocol.BLYNK_CMD_RESPONSE, out.readByte());
+        assertEquals(9, out.readUnsignedShort());
+        assertEquals(BlynkProtocol.BLYNK_SUCCESS, out.readUnsignedShort());
+        out.release();
+        assertFalse(ch.finish());
+    }
+}
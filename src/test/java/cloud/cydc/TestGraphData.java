@@ -0,0 +1,55 @@
+package cloud.cydc;
+
+import cloud.cydc.blynk.GraphData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestGraphData {
+
+    private static ByteBuffer inflate(byte[] body) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(body);
+        byte[] out = new byte[64 * 1024];
+        int n = inflater.inflate(out);
+        assertTrue(inflater.finished());
+        return ByteBuffer.wrap(out, 0, n).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testSeriesLayout() throws Exception {
+        GraphData graph = new GraphData();
+        graph.beginSeries();
+        graph.add(1.5, 1000L);
+        graph.add(-2.0, 2000L);
+        graph.endSeries();
+        graph.beginSeries();
+        graph.endSeries();
+
+        ByteBuffer buf = inflate(graph.finish());
+        assertEquals(2, buf.getInt());
+        assertEquals(1.5, buf.getDouble());
+        assertEquals(1000L, buf.getLong());
+        assertEquals(-2.0, buf.getDouble());
+        assertEquals(2000L, buf.getLong());
+        assertEquals(0, buf.getInt(), "empty second series");
+        assertFalse(buf.hasRemaining());
+        assertEquals(2, graph.getTotalPoints());
+    }
+
+    @Test
+    public void testSeriesIsCapped() throws Exception {
+        GraphData graph = new GraphData();
+        graph.beginSeries();
+        for (int i = 0; i < GraphData.MAX_POINTS; i++) {
+            assertTrue(graph.add(i, i));
+        }
+        assertFalse(graph.add(0, 0));
+        graph.endSeries();
+        assertEquals(GraphData.MAX_POINTS, inflate(graph.finish()).getInt());
+    }
+}
@@ -0,0 +1,68 @@
+package cloud.cydc;
+
+import cloud.cydc.blynk.HardwareCommand;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestHardwareCommand {
+
+    private static ByteBuf body(String s) {
+        return Unpooled.copiedBuffer(s, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testVirtualWrite() {
+        ByteBuf buf = body("vw\0" + "12\0" + "23.5");
+        HardwareCommand cmd = HardwareCommand.parse(buf);
+
+        assertNotNull(cmd);
+        assertEquals(HardwareCommand.VIRTUAL_WRITE, cmd.command());
+        assertEquals(12, cmd.pin());
+        assertTrue(cmd.hasValue());
+        assertEquals("23.5", cmd.value());
+        assertEquals(0, buf.readerIndex(), "Parsing must not consume the buffer");
+    }
+
+    @Test
+    public void testVirtualReadWithPrefixedPin() {
+        HardwareCommand cmd = HardwareCommand.parse(body("vr\0" + "V7"));
+
+        assertNotNull(cmd);
+        assertEquals(HardwareCommand.VIRTUAL_READ, cmd.command());
+        assertEquals(7, cmd.pin());
+        assertFalse(cmd.hasValue());
+    }
+
+    @Test
+    public void testValueStopsAtNextSeparator() {
+        HardwareCommand cmd = HardwareCommand.parse(body("vw\0" + "1\0" + "a\0" + "b"));
+
+        assertEquals("a", cmd.value());
+        ByteBuf out = Unpooled.buffer();
+        cmd.writeValue(out);
+        assertEquals("a", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMalformedBodies() {
+        assertNull(HardwareCommand.parse(body("vw")));
+        assertNull(HardwareCommand.parse(body("vw\0")));
+        assertNull(HardwareCommand.parse(body("vw\0" + "x1\0" + "5")));
+        assertNull(HardwareCommand.parse(body("vr\0" + "V")));
+        assertNull(HardwareCommand.parse(body("vr\0" + "1234567890")));
+    }
+
+    @Test
+    public void testUnknownCommandKeepsPin() {
+        HardwareCommand cmd = HardwareCommand.parse(body("dw\0" + "4\0" + "1"));
+
+        assertNotNull(cmd);
+        assertEquals(HardwareCommand.UNKNOWN, cmd.command());
+        assertEquals(4, cmd.pin());
+    }
+}
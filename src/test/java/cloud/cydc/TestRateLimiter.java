@@ -0,0 +1,55 @@
+package cloud.cydc;
+
+import cloud.cydc.util.RateLimiter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRateLimiter {
+
+    @Test
+    public void testDeviceBurstThenThrottled() {
+        RateLimiter limiter = new RateLimiter(0.01, 5, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("user", 1L), "message " + i + " is within the burst");
+        }
+        assertFalse(limiter.tryAcquire("user", 1L));
+        assertEquals(1L, limiter.getStats().get("deviceThrottled"));
+    }
+
+    @Test
+    public void testDevicesAreIndependent() {
+        RateLimiter limiter = new RateLimiter(0.01, 1, 0, 0);
+        assertTrue(limiter.tryAcquire("user", 1L));
+        assertFalse(limiter.tryAcquire("user", 1L));
+        assertTrue(limiter.tryAcquire("user", 2L), "a noisy device must not throttle another one");
+    }
+
+    @Test
+    public void testUserLimitCoversAllDevices() {
+        RateLimiter limiter = new RateLimiter(0, 0, 0.01, 3);
+        assertTrue(limiter.tryAcquire("user", 1L));
+        assertTrue(limiter.tryAcquire("user", 2L));
+        assertTrue(limiter.tryAcquire("user", 3L));
+        assertFalse(limiter.tryAcquire("user", 4L));
+        assertTrue(limiter.tryAcquire("other", 4L));
+        assertEquals(1L, limiter.getStats().get("userThrottled"));
+    }
+
+    @Test
+    public void testUserRejectionDoesNotChargeDevice() {
+        RateLimiter limiter = new RateLimiter(0.01, 2, 0.01, 1);
+        assertTrue(limiter.tryAcquire("user", 1L));
+        assertFalse(limiter.tryAcquire("user", 1L), "user bucket is empty");
+        assertFalse(limiter.tryAcquire("user", 1L), "user bucket is empty");
+        assertTrue(limiter.tryAcquire("other", 1L), "device still has its second token");
+    }
+
+    @Test
+    public void testDisabled() {
+        RateLimiter limiter = new RateLimiter(0, 0, 0, 0);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(limiter.tryAcquire("user", 1L));
+        }
+    }
+}
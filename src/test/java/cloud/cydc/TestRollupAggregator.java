@@ -0,0 +1,112 @@
+package cloud.cydc;
+
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.model.RollupBucket;
+import cloud.cydc.service.RollupAggregator;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRollupAggregator {
+
+    @Test
+    public void testMinuteBucketClosesAndAggregates() {
+        RollupAggregator agg = new RollupAggregator();
+        agg.add(List.of(
+            new RawDataPoint("u", 1, 10, "V1", "1.5", 60_000),
+            new RawDataPoint("u", 1, 10, "V1", "4.5", 119_999),
+            new RawDataPoint("u", 1, 10, "V1", "on", 90_000),
+            new RawDataPoint("u", 1, 10, "V1", "2", 120_000)));
+
+        List<RollupBucket> closed = agg.takeClosed(120_000);
+        assertEquals(1, closed.size(), "only the first minute has ended");
+        RollupBucket b = closed.get(0);
+        assertEquals(60, b.getResolution());
+        assertEquals(60_000, b.getBucket());
+        assertEquals(1.5, b.getMin());
+        assertEquals(4.5, b.getMax());
+        assertEquals(6.0, b.getSum());
+        assertEquals(2, b.getCount());
+    }
+
+    @Test
+    public void testRestoreMergesBack() {
+        RollupAggregator agg = new RollupAggregator();
+        agg.add(List.of(new RawDataPoint("u", 1, 10, "V1", "3", 0)));
+        List<RollupBucket> all = agg.takeClosed(Long.MAX_VALUE);
+        assertEquals(3, all.size());
+        assertEquals(0, agg.openBuckets());
+
+        agg.restore(all);
+        agg.add(List.of(new RawDataPoint("u", 1, 10, "V1", "7", 1000)));
+        for (RollupBucket b : agg.takeClosed(Long.MAX_VALUE)) {
+            assertEquals(3.0, b.getMin());
+            assertEquals(7.0, b.getMax());
+            assertEquals(2, b.getCount());
+        }
+    }
+
+    @Test
+    public void testAddCurrentOnlyFillsOpenBuckets() {
+        RollupAggregator agg = new RollupAggregator();
+        long now = 86_400_000L + 3 * 3600_000L + 5 * 60_000L + 30_000; // 03:05:30 on day 2
+        agg.addCurrent(new RawDataPoint("u", 1, 10, "V1", "1", now - 10_000), now);
+        agg.addCurrent(new RawDataPoint("u", 1, 10, "V1", "2", now - 60_000), now);
+        agg.addCurrent(new RawDataPoint("u", 1, 10, "V1", "4", now - 3600_000L), now);
+
+        for (RollupBucket b : agg.takeClosed(Long.MAX_VALUE)) {
+            switch (b.getResolution()) {
+                case 60 -> assertEquals(1, b.getCount(), "the earlier minute was already written");
+                case 3600 -> assertEquals(2, b.getCount(), "the earlier hour was already written");
+                default -> assertEquals(7.0, b.getSum());
+            }
+        }
+    }
+
+    @Test
+    public void testReplaceCurrentDoesNotCountTwice() {
+        long now = 3600_000L + 30_000;
+        RollupAggregator agg = new RollupAggregator();
+        // A replayed row already counted in memory, and a late row for an earlier minute
+        agg.add(List.of(
+            new RawDataPoint("u", 1, 10, "V1", "2", now - 1_000),
+            new RawDataPoint("u", 1, 10, "V1", "9", 3600_000L - 1)));
+
+        RollupAggregator rebuilt = new RollupAggregator();
+        rebuilt.addCurrent(new RawDataPoint("u", 1, 10, "V1", "2", now - 1_000), now);
+        agg.replaceCurrent(List.of(60), now, rebuilt.snapshot("u", 10, "V1", 60, 0, now));
+
+        List<RollupBucket> minutes = agg.snapshot("u", 10, "V1", 60, 0, now);
+        assertEquals(2, minutes.size(), "the earlier minute is not part of the rebuild");
+        assertEquals(1, minutes.get(1).getCount());
+        assertEquals(2, agg.snapshot("u", 10, "V1", 3600, 0, now).size(), "hour buckets were not rebuilt");
+    }
+
+    @Test
+    public void testSnapshotReturnsOpenBucketsInRange() {
+        RollupAggregator agg = new RollupAggregator();
+        agg.add(List.of(
+            new RawDataPoint("u", 1, 10, "V1", "1", 0),
+            new RawDataPoint("u", 1, 10, "V1", "3", 120_000),
+            new RawDataPoint("u", 1, 10, "V2", "5", 120_000)));
+
+        List<RollupBucket> open = agg.snapshot("u", 10, "V1", 60, 0, 180_000);
+        assertEquals(2, open.size());
+        assertEquals(0, open.get(0).getBucket());
+        assertEquals(120_000, open.get(1).getBucket());
+        assertEquals(3.0, open.get(1).getSum());
+        assertEquals(1, agg.snapshot("u", 10, "V1", 60, 60_000, 180_000).size());
+        assertTrue(agg.snapshot("other", 10, "V1", 60, 0, 180_000).isEmpty(), "another user's device id");
+        assertEquals(7, agg.openBuckets(), "a snapshot leaves the buckets open");
+    }
+
+    @Test
+    public void testPickResolution() {
+        long day = 86_400_000L;
+        assertEquals(60, RollupAggregator.pickResolution(0, 3600_000L, 500));
+        assertEquals(3600, RollupAggregator.pickResolution(0, 7 * day, 500));
+        assertEquals(86400, RollupAggregator.pickResolution(0, 90 * day, 500));
+    }
+}
@@ -0,0 +1,114 @@
+package cloud.cydc;
+
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.tsdb.GorillaBlock;
+import cloud.cydc.tsdb.SegmentStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSegmentStore {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testGorillaRoundTrip() throws Exception {
+        GorillaBlock block = new GorillaBlock(4096);
+        long[] ts = {1_000, 2_000, 3_000, 3_500, 10_000, 10_001, 5_000_000};
+        double[] values = {21.5, 21.5, 21.75, -3, 0, 1e9, Double.MIN_VALUE};
+        for (int i = 0; i < ts.length; i++) {
+            block.append(ts[i], values[i]);
+        }
+        List<Long> gotTs = new ArrayList<>();
+        List<Double> gotValues = new ArrayList<>();
+        GorillaBlock.decode(block.bytes(), block.count(), (index, t, v) -> {
+            gotTs.add(t);
+            gotValues.add(v);
+            return true;
+        });
+        for (int i = 0; i < ts.length; i++) {
+            assertEquals(ts[i], gotTs.get(i));
+            assertEquals(values[i], gotValues.get(i));
+        }
+    }
+
+    @Test
+    public void testScanPagesAndSurvivesReopen() throws Exception {
+        SegmentStore store = new SegmentStore(dir, 8 * 1024);
+        List<RawDataPoint> points = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            points.add(new RawDataPoint("u", 1, 10, "V1", Integer.toString(i % 100), 1_000L * i));
+        }
+        points.add(new RawDataPoint("u", 1, 10, "V2", "on", 0));
+        points.add(new RawDataPoint("u", 1, 10, "V3", "25.0", 0));
+        List<RawDataPoint> rejected = store.append(points);
+        assertEquals(2, rejected.size(), "text and non-canonical numbers go back to raw_data");
+        store.close();
+
+        store = new SegmentStore(dir, 8 * 1024);
+        List<String> values = new ArrayList<>();
+        long[] last = new long[2];
+        int rows = store.scan("u", 1, 10, "V1", 0, Long.MAX_VALUE, 0, -1, 3000, (id, ts, value) -> {
+            values.add(value);
+            last[0] = ts;
+            last[1] = id;
+        });
+        assertEquals(3000, rows);
+        rows = store.scan("u", 1, 10, "V1", 0, Long.MAX_VALUE, last[0], last[1], 3000,
+            (id, ts, value) -> values.add(value));
+        assertEquals(2000, rows);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(Integer.toString(i % 100), values.get(i));
+        }
+        assertEquals(-1, store.scan("u", 1, 10, "V2", 0, Long.MAX_VALUE, 0, -1, 10, (id, ts, value) -> { }));
+
+        assertTrue(store.deleteOlderThan(Long.MAX_VALUE) > 0, "full segments are dropped");
+        store.close();
+    }
+
+    @Test
+    public void testOlderSampleIsRejectedNotShifted() throws Exception {
+        SegmentStore store = new SegmentStore(dir, 8 * 1024);
+        store.append(List.of(new RawDataPoint("u", 1, 10, "V1", "1", 5_000)));
+        List<RawDataPoint> rejected = store.append(List.of(
+            new RawDataPoint("u", 1, 10, "V1", "2", 2_000),
+            new RawDataPoint("u", 1, 10, "V1", "3", 5_000)));
+        assertEquals(1, rejected.size(), "a replayed older row must keep its timestamp in raw_data");
+        assertEquals(2_000, rejected.get(0).getTs());
+
+        List<Long> ts = new ArrayList<>();
+        store.scan("u", 1, 10, "V1", 0, Long.MAX_VALUE, 0, -1, 10, (id, t, value) -> ts.add(t));
+        assertEquals(List.of(5_000L, 5_000L), ts);
+        assertEquals(1L, store.getStats().get("outOfOrderSamples"));
+        store.close();
+    }
+
+    @Test
+    public void testFailedWriteReturnsOnlyUnwrittenSamples() throws Exception {
+        Path storeDir = dir.resolve("store");
+        SegmentStore store = new SegmentStore(storeDir, 8 * 1024); // three block slots per segment
+        store.append(List.of(new RawDataPoint("u", 1, 10, "V1", "1", 1_000)));
+        // No directory: the next segment file cannot be created
+        try (var files = Files.list(storeDir)) {
+            for (Path f : files.toList()) Files.delete(f);
+        }
+        Files.delete(storeDir);
+
+        List<RawDataPoint> rejected = store.append(List.of(
+            new RawDataPoint("u", 1, 10, "V2", "2", 1_000),
+            new RawDataPoint("u", 1, 10, "V3", "3", 1_000),
+            new RawDataPoint("u", 1, 10, "V4", "4", 1_000),
+            new RawDataPoint("u", 1, 10, "V5", "5", 1_000)));
+        assertEquals(List.of("V4", "V5"), rejected.stream().map(RawDataPoint::getPin).toList(),
+            "samples already in the store must not be sent to raw_data again");
+        assertEquals(1, store.scan("u", 1, 10, "V3", 0, Long.MAX_VALUE, 0, -1, 10, (id, ts, value) -> { }));
+        store.close();
+    }
+}
@@ -0,0 +1,207 @@
+package cloud.cydc;
+
+import cloud.cydc.model.RawDataPoint;
+import cloud.cydc.service.WriteAheadLog;
+import cloud.cydc.service.WriteBehindQueue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestWriteBehindQueue {
+
+    private static List<String> drainAll(WriteBehindQueue queue) throws Exception {
+        List<String> rows = new ArrayList<>();
+        while (queue.drain((userId, dashId, devId, pin, value, ts) -> rows.add(devId + ":V" + pin + "=" + value), 100) > 0) {
+            // keep draining
+        }
+        return rows;
+    }
+
+    @Test
+    public void testFifoAndDepth() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(8);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer("u", 1, 10, i, "v" + i, i));
+        }
+        assertEquals(5, queue.size());
+        assertEquals(List.of("10:V0=v0", "10:V1=v1", "10:V2=v2", "10:V3=v3", "10:V4=v4"), drainAll(queue));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFullQueueBlocksThenDrops() {
+        WriteBehindQueue queue = new WriteBehindQueue(4, WriteBehindQueue.Overflow.BLOCK, 10, null);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer("u", 1, 10, i, "v", i));
+        }
+        assertFalse(queue.offer("u", 1, 10, 4, "v", 4), "no consumer, the offer must time out");
+        assertEquals(1L, queue.getStats().get("droppedRows"));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void testFailedSinkKeepsRow() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(4);
+        queue.offer("u", 1, 10, 1, "a", 1);
+        queue.offer("u", 1, 10, 2, "b", 2);
+
+        assertThrows(IllegalStateException.class, () -> queue.drain((userId, dashId, devId, pin, value, ts) -> {
+            throw new IllegalStateException("db down");
+        }, 10));
+        assertEquals(2, queue.size());
+        assertEquals(List.of("10:V1=a", "10:V2=b"), drainAll(queue));
+    }
+
+    @Test
+    public void testBatchIsAllOrNothing() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(8);
+        for (int i = 0; i < 5; i++) {
+            queue.offer("u", 1, 10, i, "v" + i, i);
+        }
+        assertThrows(IllegalStateException.class, () -> queue.drainBatch(rows -> {
+            throw new IllegalStateException("rollback");
+        }, 3));
+        assertEquals(5, queue.size());
+
+        List<RawDataPoint> committed = new ArrayList<>();
+        assertEquals(3, queue.drainBatch(committed::addAll, 3));
+        assertEquals(2, queue.drainBatch(committed::addAll, 3));
+        assertEquals(0, queue.size());
+        assertEquals("V0", committed.get(0).getPin());
+        assertEquals("v4", committed.get(4).getValue());
+    }
+
+    @Test
+    public void testSpillAndReplay(@TempDir Path dir) throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(4, WriteBehindQueue.Overflow.SPILL, 0, dir);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer("u", 1, 10, i, "v" + i, i));
+        }
+        assertEquals(4, queue.size());
+        assertEquals(6L, queue.getStats().get("spilledRows"));
+
+        List<String> rows = drainAll(queue);
+        assertEquals(10, rows.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rows.contains("10:V" + i + "=v" + i));
+        }
+        queue.close();
+    }
+
+    @Test
+    public void testSpillReplayResumesAfterRestart(@TempDir Path dir) throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(4, WriteBehindQueue.Overflow.SPILL, 0, dir);
+        for (int i = 0; i < 10; i++) {
+            queue.offer("u", 1, 10, i, "v" + i, i);
+        }
+        List<String> rows = new ArrayList<>();
+        queue.drain((userId, dashId, devId, pin, value, ts) -> rows.add("V" + pin), 4);
+        assertEquals(List.of("V0", "V1", "V2", "V3"), rows);
+        assertEquals(3, queue.size(), "refilled from the spill file");
+        queue.close();
+
+        // Rows 4-6 were already fed back; only 7-9 come from the file again
+        WriteBehindQueue restarted = new WriteBehindQueue(4, WriteBehindQueue.Overflow.SPILL, 0, dir);
+        assertEquals(List.of(), drainAll(restarted), "the first drain finds the ring empty and refills it");
+        assertEquals(List.of("10:V7=v7", "10:V8=v8", "10:V9=v9"), drainAll(restarted));
+        restarted.close();
+    }
+
+    @Test
+    public void testCorruptSpillFileIsMovedAside(@TempDir Path dir) throws Exception {
+        // A UTF length followed by bytes that are not valid modified UTF-8
+        Files.write(dir.resolve("pending-1-000000.spill"), new byte[]{0, 2, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0});
+        WriteBehindQueue queue = new WriteBehindQueue(4, WriteBehindQueue.Overflow.SPILL, 0, dir);
+        assertEquals(List.of(), drainAll(queue));
+        assertTrue(Files.exists(dir.resolve("pending-1-000000.spill.bad")));
+        assertFalse(Files.exists(dir.resolve("pending-1-000000.spill")));
+        queue.close();
+    }
+
+    @Test
+    public void testOfferNowNeverWaits() {
+        WriteBehindQueue queue = new WriteBehindQueue(2, WriteBehindQueue.Overflow.BLOCK, 60_000, null);
+        assertTrue(queue.offerNow("u", 1, 10, 0, "v", 0));
+        assertTrue(queue.offerNow("u", 1, 10, 1, "v", 1));
+        assertFalse(queue.hasRoom());
+        assertFalse(queue.offerNow("u", 1, 10, 2, "v", 2), "a full ring must drop at once instead of blocking");
+    }
+
+    @Test
+    public void testWalReplaysRowsAfterCheckpoint(@TempDir Path dir) throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 4096, true);
+        assertEquals(0, wal.replay((userId, dashId, devId, pin, value, ts) -> fail("empty log")));
+        WriteBehindQueue queue = new WriteBehindQueue(64, WriteBehindQueue.Overflow.BLOCK, 10, null, wal);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer("u", 1, 10, i % 128, "v" + i, i));
+            if (queue.size() == 64) {
+                drainAll(queue);
+                queue.checkpoint();
+            }
+        }
+        // 100 rows over several 4 KB segments, 64 committed; simulate a crash by not draining the rest
+        queue.close();
+
+        List<String> replayed = new ArrayList<>();
+        WriteAheadLog reopened = new WriteAheadLog(dir, 4096, true);
+        reopened.replay((userId, dashId, devId, pin, value, ts) -> replayed.add(value));
+        assertEquals(36, replayed.size());
+        assertEquals("v64", replayed.get(0));
+        assertEquals("v99", replayed.get(35));
+
+        // Replayed rows are checkpointed, a second start finds nothing
+        assertEquals(0, new WriteAheadLog(dir, 4096, true).replay((userId, dashId, devId, pin, value, ts) -> fail("already replayed")));
+    }
+
+    @Test
+    public void testWalReplaysInBatches(@TempDir Path dir) throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 4096, true);
+        wal.replay((userId, dashId, devId, pin, value, ts) -> fail("empty log"));
+        for (int i = 0; i < 25; i++) {
+            wal.append("u", 1, 10, 3, "v" + i, i);
+        }
+        wal.close();
+
+        List<Integer> sizes = new ArrayList<>();
+        List<String> pins = new ArrayList<>();
+        new WriteAheadLog(dir, 4096, true).replay(rows -> {
+            sizes.add(rows.size());
+            rows.forEach(p -> pins.add(p.getPin()));
+        }, 10);
+        assertEquals(List.of(10, 10, 5), sizes, "the last partial batch is stored too");
+        assertEquals("V3", pins.get(0));
+    }
+
+    @Test
+    public void testRejectedRowIsDroppedAndQueueMoves() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(16, WriteBehindQueue.Overflow.BLOCK, 10, null, null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer("u", 1, 10, 1, i == 2 ? "bad" : "v" + i, i));
+        }
+        List<String> stored = new ArrayList<>();
+        WriteBehindQueue.BatchSink sink = rows -> {
+            for (RawDataPoint p : rows) {
+                if (p.getValue().equals("bad")) {
+                    throw new WriteBehindQueue.RejectedRowsException("invalid byte sequence", null);
+                }
+            }
+            rows.forEach(p -> stored.add(p.getValue()));
+        };
+        assertEquals(5, queue.drainBatch(sink, 10));
+        assertEquals(List.of("v0", "v1", "v3", "v4"), stored);
+        assertEquals(0, queue.size(), "the bad row must not stay at the head");
+
+        // Any other failure (database down) keeps the whole batch
+        assertTrue(queue.offer("u", 1, 10, 1, "v5", 5));
+        assertThrows(IllegalStateException.class, () -> queue.drainBatch(rows -> {
+            throw new IllegalStateException("connection refused");
+        }, 10));
+        assertEquals(1, queue.size());
+    }
+}